@@ -0,0 +1,27 @@
+plugins {
+    java
+    id("me.champeau.jmh").version("0.7.1")
+}
+
+group = "org.snd"
+version = "unspecified"
+
+dependencies {
+    jmh(project(":gif_decoder"))
+    // ContentDetector and the rest of the desktop image pipeline
+    jmh(project(path = ":shared", configuration = "desktopRuntimeElements"))
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
+
+jmh {
+    jmhVersion.set("1.36")
+    // gc profiler reports gc.alloc.rate.norm, i.e. bytes allocated per benchmark operation
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    // allows running a subset: ./gradlew :benchmarks:jmh -Pjmh.includes=GifHeaderParserBenchmark
+    findProperty("jmh.includes")?.let { includes.add(it as String) }
+}
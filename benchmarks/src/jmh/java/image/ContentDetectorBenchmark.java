@@ -0,0 +1,106 @@
+package image;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per image cost of {@link ContentDetector} signature detection compared to the Tika detector it replaces.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ContentDetectorBenchmark {
+
+    @Param({"gif", "png", "apng", "jpeg", "webp"})
+    public String format;
+
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        switch (format) {
+            case "gif":
+                try (InputStream is = ContentDetectorBenchmark.class.getResourceAsStream("/corpus/small.gif")) {
+                    data = is.readAllBytes();
+                }
+                break;
+            case "png":
+                data = encode("png");
+                break;
+            case "apng":
+                data = withAnimationControl(encode("png"));
+                break;
+            case "jpeg":
+                data = encode("jpeg");
+                break;
+            case "webp":
+                data = webpHeader();
+                break;
+            default:
+                throw new IllegalArgumentException(format);
+        }
+    }
+
+    @Benchmark
+    public String detect() {
+        return ContentDetector.INSTANCE.getMediaType(data);
+    }
+
+    @Benchmark
+    public String tika() {
+        return ContentDetector.INSTANCE.detectWithTika(data);
+    }
+
+    private static byte[] encode(String format) throws IOException {
+        BufferedImage image = new BufferedImage(112, 112, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, (x * 2) << 16 | (y * 2) << 8 | (x + y));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Inserts an acTL chunk after IHDR, the chunk crc isn't checked by detection.
+     */
+    private static byte[] withAnimationControl(byte[] png) {
+        int ihdrEnd = 8 + 4 + 4 + 13 + 4;
+        ByteBuffer apng = ByteBuffer.allocate(png.length + 20);
+        apng.put(png, 0, ihdrEnd);
+        apng.putInt(8).put("acTL".getBytes(StandardCharsets.US_ASCII)).putInt(1).putInt(0).putInt(0);
+        apng.put(png, ihdrEnd, png.length - ihdrEnd);
+        return apng.array();
+    }
+
+    private static byte[] webpHeader() {
+        ByteBuffer webp = ByteBuffer.allocate(64);
+        webp.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt(Integer.reverseBytes(56));
+        webp.put("WEBPVP8 ".getBytes(StandardCharsets.US_ASCII));
+        return webp.array();
+    }
+}
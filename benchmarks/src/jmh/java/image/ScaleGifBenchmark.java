@@ -0,0 +1,56 @@
+package image;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling a whole gif to emote size with and without subsampling in the decoder.
+ * Run with the gc profiler, gc.alloc.rate.norm shows the memory saved per gif.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ScaleGifBenchmark {
+
+    @Param({"large.gif", "interlaced.gif"})
+    public String file;
+
+    @Param({"120", "60"})
+    public int size;
+
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        try (InputStream is = ScaleGifBenchmark.class.getResourceAsStream("/corpus/" + file)) {
+            data = is.readAllBytes();
+        }
+    }
+
+    @Benchmark
+    public ScaledBufferedImageFrames decodeSampling() {
+        return ImageConverter.INSTANCE.scaleGif(data, size, size, true, 0);
+    }
+
+    @Benchmark
+    public ScaledBufferedImageFrames fullResolution() {
+        return ImageConverter.INSTANCE.scaleGif(data, size, size, false, 0);
+    }
+}
@@ -0,0 +1,34 @@
+package org.snd.gifdecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Access to the GIF files checked in under {@code src/jmh/resources/corpus}.
+ * <p>
+ * The corpus is produced by {@link GifCorpusGenerator} and covers the decoder paths that matter for
+ * chat emotes: small and large canvases, interlaced frames, per-frame local color tables and
+ * {@link GifFrame#DISPOSAL_PREVIOUS} sub-rectangle frames.
+ */
+final class GifCorpus {
+    static final String SMALL = "small.gif";
+    static final String LARGE = "large.gif";
+    static final String INTERLACED = "interlaced.gif";
+    static final String LCT_HEAVY = "lct_heavy.gif";
+    static final String DISPOSAL_PREVIOUS = "disposal_previous.gif";
+
+    private GifCorpus() {
+    }
+
+    static byte[] load(String name) {
+        try (InputStream is = GifCorpus.class.getResourceAsStream("/corpus/" + name)) {
+            if (is == null) {
+                throw new IllegalStateException("Missing corpus file " + name);
+            }
+            return is.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
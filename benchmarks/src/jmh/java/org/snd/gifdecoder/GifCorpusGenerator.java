@@ -0,0 +1,162 @@
+package org.snd.gifdecoder;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Regenerates the benchmark corpus. The output is checked in, this only needs to be run when
+ * the corpus itself changes:
+ * <pre>
+ * java -cp benchmarks/build/classes/java/jmh org.snd.gifdecoder.GifCorpusGenerator benchmarks/src/jmh/resources/corpus
+ * </pre>
+ */
+public final class GifCorpusGenerator {
+    private static final String IMAGE_METADATA_FORMAT = "javax_imageio_gif_image_1.0";
+
+    private GifCorpusGenerator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path output = Path.of(args.length > 0 ? args[0] : "benchmarks/src/jmh/resources/corpus");
+        Files.createDirectories(output);
+
+        IndexColorModel palette = gradientPalette(0);
+        write(output.resolve(GifCorpus.SMALL), 32, 10, (index, writer) ->
+                fullFrame(writer, 32, 32, palette, index, 4, "doNotDispose", false));
+        write(output.resolve(GifCorpus.LARGE), 480, 12, (index, writer) ->
+                fullFrame(writer, 480, 480, palette, index, 6, "doNotDispose", false));
+        write(output.resolve(GifCorpus.INTERLACED), 256, 12, (index, writer) ->
+                fullFrame(writer, 256, 256, palette, index, 6, "doNotDispose", true));
+        write(output.resolve(GifCorpus.LCT_HEAVY), 128, 24, (index, writer) ->
+                fullFrame(writer, 128, 128, gradientPalette(index * 10), index, 4, "doNotDispose", false));
+        write(output.resolve(GifCorpus.DISPOSAL_PREVIOUS), 160, 24, (index, writer) -> {
+            if (index == 0) {
+                fullFrame(writer, 160, 160, palette, index, 4, "doNotDispose", false);
+            } else {
+                // small sprite moving over the first frame, each frame restored before the next one
+                subFrame(writer, palette, (index * 7) % 120, (index * 5) % 120, 40, 40, index);
+            }
+        });
+    }
+
+    private interface FrameWriter {
+        void write(int index, ImageWriter writer) throws IOException;
+    }
+
+    private static void write(Path path, int size, int frameCount, FrameWriter frames) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+        Files.deleteIfExists(path);
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(path.toFile())) {
+            writer.setOutput(out);
+            writer.prepareWriteSequence(null);
+            for (int i = 0; i < frameCount; i++) {
+                frames.write(i, writer);
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+        System.out.println(path + " " + size + "x" + size + " " + frameCount + " frames, " + Files.size(path) + " bytes");
+    }
+
+    private static void fullFrame(ImageWriter writer, int width, int height, IndexColorModel palette, int index,
+                                  int delay, String disposal, boolean interlace) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, palette);
+        Graphics2D g = image.createGraphics();
+        for (int y = 0; y < height; y += 8) {
+            g.setColor(new Color(palette.getRGB((y / 8 + index) % 255 + 1)));
+            g.fillRect(0, y, width, 8);
+        }
+        g.setColor(new Color(palette.getRGB(255 - index % 64)));
+        g.fillOval((index * width / 16) % width, height / 4, width / 3, height / 3);
+        g.dispose();
+        writer.writeToSequence(new IIOImage(image, null, metadata(writer, image, index == 0, 0, 0, delay, disposal, interlace)), null);
+    }
+
+    private static void subFrame(ImageWriter writer, IndexColorModel palette, int x, int y, int width, int height,
+                                 int index) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, palette);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(palette.getRGB(index * 9 % 255 + 1)));
+        g.fillRect(0, 0, width, height);
+        g.setColor(new Color(palette.getRGB(index * 17 % 255 + 1)));
+        g.fillOval(4, 4, width - 8, height - 8);
+        g.dispose();
+        writer.writeToSequence(new IIOImage(image, null,
+                metadata(writer, image, false, x, y, 4, "restoreToPrevious", false)), null);
+    }
+
+    private static IIOMetadata metadata(ImageWriter writer, BufferedImage image, boolean first, int x, int y,
+                                        int delay, String disposal, boolean interlace) throws IIOInvalidTreeException {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(IMAGE_METADATA_FORMAT);
+
+        IIOMetadataNode descriptor = child(root, "ImageDescriptor");
+        descriptor.setAttribute("imageLeftPosition", Integer.toString(x));
+        descriptor.setAttribute("imageTopPosition", Integer.toString(y));
+        descriptor.setAttribute("imageWidth", Integer.toString(image.getWidth()));
+        descriptor.setAttribute("imageHeight", Integer.toString(image.getHeight()));
+        descriptor.setAttribute("interlaceFlag", Boolean.toString(interlace));
+
+        IIOMetadataNode control = child(root, "GraphicControlExtension");
+        control.setAttribute("disposalMethod", disposal);
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "TRUE");
+        control.setAttribute("delayTime", Integer.toString(delay));
+        control.setAttribute("transparentColorIndex", "0");
+
+        if (first) {
+            // loop forever
+            IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+            loop.setAttribute("applicationID", "NETSCAPE");
+            loop.setAttribute("authenticationCode", "2.0");
+            loop.setUserObject(new byte[]{1, 0, 0});
+            child(root, "ApplicationExtensions").appendChild(loop);
+        }
+
+        metadata.setFromTree(IMAGE_METADATA_FORMAT, root);
+        return metadata;
+    }
+
+    private static IIOMetadataNode child(IIOMetadataNode root, String name) {
+        for (int i = 0; i < root.getLength(); i++) {
+            if (root.item(i).getNodeName().equalsIgnoreCase(name)) {
+                return (IIOMetadataNode) root.item(i);
+            }
+        }
+        IIOMetadataNode node = new IIOMetadataNode(name);
+        root.appendChild(node);
+        return node;
+    }
+
+    /**
+     * 256 entry palette, index 0 is reserved for transparency.
+     */
+    private static IndexColorModel gradientPalette(int shift) {
+        byte[] r = new byte[256];
+        byte[] g = new byte[256];
+        byte[] b = new byte[256];
+        for (int i = 1; i < 256; i++) {
+            int c = (i + shift) & 0xFF;
+            r[i] = (byte) c;
+            g[i] = (byte) ((c * 3) & 0xFF);
+            b[i] = (byte) (255 - c);
+        }
+        return new IndexColorModel(8, 256, r, g, b);
+    }
+}
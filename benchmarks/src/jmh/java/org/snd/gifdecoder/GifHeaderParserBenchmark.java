@@ -0,0 +1,57 @@
+package org.snd.gifdecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link GifHeaderParser#parseHeader()} for a whole file, compared to parsing it with
+ * {@link StreamingGifParser} while reading it from a stream in 8 KiB chunks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GifHeaderParserBenchmark {
+
+    @Param({GifCorpus.SMALL, GifCorpus.LARGE, GifCorpus.INTERLACED, GifCorpus.LCT_HEAVY, GifCorpus.DISPOSAL_PREVIOUS})
+    public String file;
+
+    private byte[] bytes;
+    private ByteBuffer data;
+    private GifHeaderParser parser;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        bytes = GifCorpus.load(file);
+        data = ByteBuffer.wrap(bytes);
+        parser = new GifHeaderParser();
+    }
+
+    @Benchmark
+    public GifHeader parseHeader() {
+        return parser.setData(data).parseHeader();
+    }
+
+    @Benchmark
+    public GifHeader streamingParse() throws IOException {
+        return new StreamingGifParser().readFully(Channels.newChannel(new ByteArrayInputStream(bytes)));
+    }
+}
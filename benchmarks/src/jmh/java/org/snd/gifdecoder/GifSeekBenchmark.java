@@ -0,0 +1,57 @@
+package org.snd.gifdecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link StandardGifDecoder#seekTo(int)} to a random frame followed by decoding it.
+ * <p>
+ * The corpus gifs only have their first frame as keyframe, without snapshots every seek decodes all frames
+ * up to the target.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GifSeekBenchmark {
+
+    @Param({GifCorpus.SMALL, GifCorpus.LARGE, GifCorpus.DISPOSAL_PREVIOUS})
+    public String file;
+
+    @Param({"0", "4", "16"})
+    public int snapshotInterval;
+
+    private final Random random = new Random(42);
+    private StandardGifDecoder decoder;
+    private int[] frameBuffer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        decoder = new StandardGifDecoder();
+        decoder.read(GifCorpus.load(file));
+        decoder.setSnapshotPolicy(snapshotInterval, 64 * 1024 * 1024);
+        frameBuffer = new int[decoder.getWidth() * decoder.getHeight()];
+    }
+
+    @Benchmark
+    public int[] seekAndDecode() {
+        decoder.seekTo(random.nextInt(decoder.getFrameCount()));
+        decoder.decodeNextFrameInto(frameBuffer, PixelFormat.ARGB_8888);
+        return frameBuffer;
+    }
+}
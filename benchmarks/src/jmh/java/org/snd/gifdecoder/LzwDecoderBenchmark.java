@@ -0,0 +1,90 @@
+package org.snd.gifdecoder;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link LzwDecoder} against the blockwise LZW decoder it replaced.
+ * <p>
+ * Every benchmark operation decodes all frames of the file into a reused buffer, so apart from the LZW
+ * decoders both benchmarks do the same work. The {@code bytes} counter is reported in GIF bytes per second,
+ * i.e. the MB/s a GIF is decoded at, {@code pixels} in canvas pixels per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LzwDecoderBenchmark {
+
+    @Param({GifCorpus.SMALL, GifCorpus.LARGE, GifCorpus.INTERLACED, GifCorpus.LCT_HEAVY, GifCorpus.DISPOSAL_PREVIOUS})
+    public String file;
+
+    private int fileSize;
+    private StandardGifDecoder decoder;
+    private StandardGifDecoder blockwiseDecoder;
+    private int[] frameBuffer;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long bytes;
+        public long pixels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            pixels = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        byte[] data = GifCorpus.load(file);
+        fileSize = data.length;
+
+        decoder = new StandardGifDecoder();
+        decoder.read(data);
+
+        blockwiseDecoder = new StandardGifDecoder();
+        blockwiseDecoder.read(data);
+        blockwiseDecoder.forceBlockwiseLzw = true;
+
+        frameBuffer = new int[decoder.getWidth() * decoder.getHeight()];
+    }
+
+    @Benchmark
+    public int[] decodeFlattened(Counters counters) {
+        return decodeAll(decoder, counters);
+    }
+
+    @Benchmark
+    public int[] decodeBlockwise(Counters counters) {
+        return decodeAll(blockwiseDecoder, counters);
+    }
+
+    private int[] decodeAll(StandardGifDecoder decoder, Counters counters) {
+        decoder.resetFrameIndex();
+        for (int i = 0; i < decoder.getFrameCount(); i++) {
+            decoder.advance();
+            decoder.decodeNextFrameInto(frameBuffer, PixelFormat.BGRA_8888);
+        }
+        counters.bytes += fileSize;
+        counters.pixels += (long) frameBuffer.length * decoder.getFrameCount();
+        return frameBuffer;
+    }
+}
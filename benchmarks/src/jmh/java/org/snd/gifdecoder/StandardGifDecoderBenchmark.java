@@ -0,0 +1,85 @@
+package org.snd.gifdecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame decode cost of {@link StandardGifDecoder}.
+ * <p>
+ * Every benchmark operation decodes exactly one frame, cycling through the animation, so the reported
+ * ns/op is ns/frame and the gc profiler's {@code gc.alloc.rate.norm} is bytes allocated per frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StandardGifDecoderBenchmark {
+
+    @Param({GifCorpus.SMALL, GifCorpus.LARGE, GifCorpus.INTERLACED, GifCorpus.LCT_HEAVY, GifCorpus.DISPOSAL_PREVIOUS})
+    public String file;
+
+    private StandardGifDecoder decoder;
+    private StandardGifDecoder robustCopyDecoder;
+    private StandardGifDecoder intoBufferDecoder;
+    private int[] frameBuffer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        byte[] data = GifCorpus.load(file);
+
+        decoder = new StandardGifDecoder();
+        decoder.read(data);
+
+        robustCopyDecoder = new StandardGifDecoder();
+        robustCopyDecoder.read(data);
+        robustCopyDecoder.forceRobustCopy = true;
+
+        intoBufferDecoder = new StandardGifDecoder();
+        intoBufferDecoder.read(data);
+        frameBuffer = new int[intoBufferDecoder.getWidth() * intoBufferDecoder.getHeight()];
+    }
+
+    /**
+     * LZW decode plus {@code copyIntoScratchFast} (or the robust copy for interlaced input).
+     */
+    @Benchmark
+    public BufferedImage decodeFrame() {
+        decoder.advance();
+        return decoder.getNextFrame();
+    }
+
+    /**
+     * Same input forced through {@code copyCopyIntoScratchRobust}, the difference to
+     * {@link #decodeFrame()} is the cost of the robust copy path.
+     */
+    @Benchmark
+    public BufferedImage decodeFrameRobustCopy() {
+        robustCopyDecoder.advance();
+        return robustCopyDecoder.getNextFrame();
+    }
+
+    /**
+     * Allocation free decode into a reused BGRA buffer, compare with {@link #decodeFrame()}.
+     */
+    @Benchmark
+    public int[] decodeFrameIntoBuffer() {
+        intoBufferDecoder.advance();
+        intoBufferDecoder.decodeNextFrameInto(frameBuffer, PixelFormat.BGRA_8888);
+        return frameBuffer;
+    }
+}
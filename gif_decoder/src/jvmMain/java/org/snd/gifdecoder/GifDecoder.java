@@ -89,6 +89,14 @@ public interface GifDecoder {
      */
     void resetFrameIndex();
 
+    /**
+     * Moves the frame pointer so that frame n is decoded next, frames in between are composed from the
+     * closest keyframe or snapshot before n instead of from the first frame.
+     *
+     * @param n int index of frame.
+     */
+    void seekTo(int n);
+
     /**
      * Gets the "Netscape" loop count, if any. A count of 0 means repeat indefinitely.
      *
@@ -152,6 +160,30 @@ public interface GifDecoder {
     @Nullable
     BufferedImage getNextFrame();
 
+    /**
+     * Decode the next frame in the animation sequence into a caller supplied buffer.
+     *
+     * <p>Unlike {@link #getNextFrame()} this doesn't allocate per frame, the same destination can be
+     * reused for every frame of the animation. The destination must hold at least
+     * {@code width * height} pixels of the (possibly downsampled) frame.</p>
+     *
+     * @param dest   destination, pixels are written starting at index 0.
+     * @param format layout of the written pixels.
+     * @return read status code (0 = no errors), the destination is left untouched on errors.
+     */
+    int decodeNextFrameInto(@Nonnull int[] dest, @Nonnull PixelFormat format);
+
+    /**
+     * Decode the next frame in the animation sequence into a caller supplied buffer.
+     *
+     * @param dest   destination, pixels are written starting at its current position. The position is not
+     *               modified.
+     * @param format layout of the written pixels.
+     * @return read status code (0 = no errors), the destination is left untouched on errors.
+     * @see #decodeNextFrameInto(int[], PixelFormat)
+     */
+    int decodeNextFrameInto(@Nonnull ByteBuffer dest, @Nonnull PixelFormat format);
+
     /**
      * Reads GIF image from stream.
      *
@@ -0,0 +1,64 @@
+package org.snd.gifdecoder;
+
+import jakarta.annotation.Nonnull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of {@link StandardGifDecoder}s that keeps their LZW tables and pixel buffers between gifs.
+ *
+ * <p>Buffers grow to the largest gif a decoder has seen and are reused by smaller ones, so decoding many
+ * gifs only allocates buffers for as many decoders as are used at the same time. Obtained decoders are
+ * owned by the caller until they are passed to {@link #release(StandardGifDecoder)}.
+ *
+ * <p>This class is thread safe.
+ */
+public class GifDecoderPool {
+    private final ConcurrentLinkedQueue<StandardGifDecoder> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final int maxIdle;
+    private final int maxRetainedBytes;
+
+    /**
+     * @param maxIdle          number of released decoders kept for reuse.
+     * @param maxRetainedBytes decoders holding larger buffers than this are dropped on release.
+     */
+    public GifDecoderPool(int maxIdle, int maxRetainedBytes) {
+        this.maxIdle = maxIdle;
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    /**
+     * Returns a decoder set up for the given gif, reusing a released decoder if possible.
+     *
+     * @see StandardGifDecoder#setData(GifHeader, ByteBuffer, int)
+     */
+    @Nonnull
+    public StandardGifDecoder obtain(@Nonnull GifHeader header, @Nonnull ByteBuffer data, int sampleSize) {
+        StandardGifDecoder decoder = idle.poll();
+        if (decoder == null) {
+            decoder = new StandardGifDecoder();
+        } else {
+            idleCount.decrementAndGet();
+        }
+        decoder.setData(header, data, sampleSize);
+        return decoder;
+    }
+
+    /**
+     * Returns a decoder to the pool, it must not be used by the caller afterwards.
+     */
+    public void release(@Nonnull StandardGifDecoder decoder) {
+        decoder.recycle();
+        if (decoder.getRetainedByteSize() > maxRetainedBytes) {
+            return;
+        }
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.offer(decoder);
+    }
+}
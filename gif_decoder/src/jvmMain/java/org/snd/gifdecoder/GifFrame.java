@@ -59,9 +59,31 @@ class GifFrame {
      * Index in the raw buffer where we need to start reading to decode.
      */
     int bufferFrameStart;
+    /**
+     * Frame replaces the whole canvas, so it can be composed without decoding earlier frames.
+     */
+    boolean keyframe;
     /**
      * Local Color Table.
      */
 //    @ColorInt
     int[] lct;
-}
\ No newline at end of file
+
+    GifFrame copy() {
+        GifFrame copy = new GifFrame();
+        copy.ix = ix;
+        copy.iy = iy;
+        copy.iw = iw;
+        copy.ih = ih;
+        copy.interlace = interlace;
+        copy.transparency = transparency;
+        copy.dispose = dispose;
+        copy.transIndex = transIndex;
+        copy.delay = delay;
+        copy.bufferFrameStart = bufferFrameStart;
+        copy.keyframe = keyframe;
+        // Color tables are not modified once parsed.
+        copy.lct = lct;
+        return copy;
+    }
+}
@@ -74,4 +74,26 @@ public class GifHeader {
     public int getStatus() {
         return status;
     }
-}
\ No newline at end of file
+
+    /**
+     * Copy that is not affected by further parsing of this header, frames are copied as well.
+     */
+    GifHeader copy() {
+        GifHeader copy = new GifHeader();
+        copy.gct = gct;
+        copy.status = status;
+        copy.frameCount = frameCount;
+        for (GifFrame frame : frames) {
+            copy.frames.add(frame.copy());
+        }
+        copy.width = width;
+        copy.height = height;
+        copy.gctFlag = gctFlag;
+        copy.gctSize = gctSize;
+        copy.bgIndex = bgIndex;
+        copy.pixelAspect = pixelAspect;
+        copy.bgColor = bgColor;
+        copy.loopCount = loopCount;
+        return copy;
+    }
+}
@@ -8,6 +8,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
 
+import static org.snd.gifdecoder.GifFrame.DISPOSAL_BACKGROUND;
 import static org.snd.gifdecoder.GifFrame.DISPOSAL_NONE;
 import static org.snd.gifdecoder.GifFrame.DISPOSAL_UNSPECIFIED;
 
@@ -128,6 +129,10 @@ public class GifHeaderParser {
     private ByteBuffer rawData;
     private GifHeader header;
     private int blockSize = 0;
+    // Progress of parseAvailable(), the position is always at the start of a block.
+    private boolean headerParsed;
+    private boolean trailerRead;
+    private int parsedPosition;
 
     public GifHeaderParser setData(@Nonnull ByteBuffer data) {
         reset();
@@ -157,6 +162,9 @@ public class GifHeaderParser {
         Arrays.fill(block, (byte) 0);
         header = new GifHeader();
         blockSize = 0;
+        headerParsed = false;
+        trailerRead = false;
+        parsedPosition = 0;
     }
 
     @Nonnull
@@ -179,6 +187,121 @@ public class GifHeaderParser {
         return header;
     }
 
+    /**
+     * Prepares {@link #parseAvailable(ByteBuffer)} for a new GIF.
+     */
+    void beginStreaming() {
+        reset();
+    }
+
+    /**
+     * Parses a GIF that is still being received. Only complete blocks are parsed, so each call continues
+     * with the first block the previous call could not finish.
+     *
+     * @param data all bytes received so far, from the GIF signature up to the limit.
+     * @return true once the trailer was read or the data turned out not to be a valid GIF.
+     */
+    boolean parseAvailable(@Nonnull ByteBuffer data) {
+        rawData = data.asReadOnlyBuffer();
+        rawData.order(ByteOrder.LITTLE_ENDIAN);
+        int available = rawData.limit();
+
+        if (!headerParsed) {
+            if (available < headerEnd()) {
+                return false;
+            }
+            rawData.position(0);
+            readHeader();
+            headerParsed = true;
+            parsedPosition = rawData.position();
+        }
+
+        while (!(trailerRead || err())) {
+            int blockEnd = contentBlockEnd(parsedPosition);
+            if (blockEnd < 0) {
+                break;
+            }
+            // Nothing past the block is read, even for malformed data.
+            rawData.limit(blockEnd);
+            rawData.position(parsedPosition);
+            trailerRead = readContentBlock();
+            parsedPosition = blockEnd;
+            rawData.limit(available);
+        }
+        return trailerRead || err();
+    }
+
+    /**
+     * Header read by {@link #parseAvailable(ByteBuffer)} so far.
+     */
+    @Nonnull
+    GifHeader getStreamingHeader() {
+        return header;
+    }
+
+    /**
+     * End of the signature, logical screen descriptor and global color table, or
+     * {@link Integer#MAX_VALUE} if not enough is available to tell.
+     */
+    private int headerEnd() {
+        // Signature and logical screen descriptor.
+        int end = 13;
+        if (rawData.limit() < end) {
+            return Integer.MAX_VALUE;
+        }
+        int packed = rawData.get(10) & MASK_INT_LOWEST_BYTE;
+        if ((packed & LSD_MASK_GCT_FLAG) != 0) {
+            end += 3 * (int) Math.pow(2, (packed & LSD_MASK_GCT_SIZE) + 1);
+        }
+        return end;
+    }
+
+    /**
+     * End of the content block starting at position, or -1 if it was not completely received yet.
+     */
+    private int contentBlockEnd(int position) {
+        int limit = rawData.limit();
+        if (position >= limit) {
+            return -1;
+        }
+        switch (rawData.get(position) & MASK_INT_LOWEST_BYTE) {
+            case IMAGE_SEPARATOR:
+                // Separator and image descriptor.
+                int descriptorEnd = position + 10;
+                if (descriptorEnd > limit) {
+                    return -1;
+                }
+                int packed = rawData.get(position + 9) & MASK_INT_LOWEST_BYTE;
+                if ((packed & DESCRIPTOR_MASK_LCT_FLAG) != 0) {
+                    descriptorEnd += 3 * (int) Math.pow(2, (packed & DESCRIPTOR_MASK_LCT_SIZE) + 1);
+                }
+                // LZW minimum code size, then the data sub-blocks.
+                return subBlocksEnd(descriptorEnd + 1);
+            case EXTENSION_INTRODUCER:
+                // Label, then the data sub-blocks.
+                return subBlocksEnd(position + 2);
+            default:
+                // Trailer or a bad byte, both are a single byte.
+                return position + 1;
+        }
+    }
+
+    /**
+     * End of the data sub-blocks starting at position, including the zero length terminator, or -1 if
+     * they were not completely received yet.
+     */
+    private int subBlocksEnd(int position) {
+        int limit = rawData.limit();
+        while (position < limit) {
+            int size = rawData.get(position) & MASK_INT_LOWEST_BYTE;
+            position += 1 + size;
+            if (size == 0) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Determines if the GIF is animated by trying to read in the first 2 frames
      * This method re-parses the data even if the header has already been read.
@@ -205,60 +328,69 @@ public class GifHeaderParser {
         // Read GIF file content blocks.
         boolean done = false;
         while (!(done || err() || header.frameCount > maxFrames)) {
-            int code = read();
-            switch (code) {
-                case IMAGE_SEPARATOR:
-                    // The Graphic Control Extension is optional, but will always come first if it exists.
-                    // If one did exist, there will be a non-null current frame which we should use.
-                    // However if one did not exist, the current frame will be null
-                    // and we must create it here. See issue #134.
-                    if (header.currentFrame == null) {
+            done = readContentBlock();
+        }
+    }
+
+    /**
+     * Reads a single GIF content block.
+     *
+     * @return true if the block was the trailer.
+     */
+    private boolean readContentBlock() {
+        int code = read();
+        switch (code) {
+            case IMAGE_SEPARATOR:
+                // The Graphic Control Extension is optional, but will always come first if it exists.
+                // If one did exist, there will be a non-null current frame which we should use.
+                // However if one did not exist, the current frame will be null
+                // and we must create it here. See issue #134.
+                if (header.currentFrame == null) {
+                    header.currentFrame = new GifFrame();
+                }
+                readBitmap();
+                break;
+            case EXTENSION_INTRODUCER:
+                int extensionLabel = read();
+                switch (extensionLabel) {
+                    case LABEL_GRAPHIC_CONTROL_EXTENSION:
+                        // Start a new frame.
                         header.currentFrame = new GifFrame();
-                    }
-                    readBitmap();
-                    break;
-                case EXTENSION_INTRODUCER:
-                    int extensionLabel = read();
-                    switch (extensionLabel) {
-                        case LABEL_GRAPHIC_CONTROL_EXTENSION:
-                            // Start a new frame.
-                            header.currentFrame = new GifFrame();
-                            readGraphicControlExt();
-                            break;
-                        case LABEL_APPLICATION_EXTENSION:
-                            readBlock();
-                            StringBuilder app = new StringBuilder();
-                            for (int i = 0; i < 11; i++) {
-                                app.append((char) block[i]);
-                            }
-                            if (app.toString().equals("NETSCAPE2.0")) {
-                                readNetscapeExt();
-                            } else {
-                                // Don't care.
-                                skip();
-                            }
-                            break;
-                        case LABEL_COMMENT_EXTENSION:
-                            skip();
-                            break;
-                        case LABEL_PLAIN_TEXT_EXTENSION:
+                        readGraphicControlExt();
+                        break;
+                    case LABEL_APPLICATION_EXTENSION:
+                        readBlock();
+                        StringBuilder app = new StringBuilder();
+                        for (int i = 0; i < 11; i++) {
+                            app.append((char) block[i]);
+                        }
+                        if (app.toString().equals("NETSCAPE2.0")) {
+                            readNetscapeExt();
+                        } else {
+                            // Don't care.
                             skip();
-                            break;
-                        default:
-                            // Uninteresting extension.
-                            skip();
-                    }
-                    break;
-                case TRAILER:
-                    // This block is a single-field block indicating the end of the GIF Data Stream.
-                    done = true;
-                    break;
-                // Bad byte, but keep going and see what happens
-                case 0x00:
-                default:
-                    header.status = GifDecoder.STATUS_FORMAT_ERROR;
-            }
+                        }
+                        break;
+                    case LABEL_COMMENT_EXTENSION:
+                        skip();
+                        break;
+                    case LABEL_PLAIN_TEXT_EXTENSION:
+                        skip();
+                        break;
+                    default:
+                        // Uninteresting extension.
+                        skip();
+                }
+                break;
+            case TRAILER:
+                // This block is a single-field block indicating the end of the GIF Data Stream.
+                return true;
+            // Bad byte, but keep going and see what happens
+            case 0x00:
+            default:
+                header.status = GifDecoder.STATUS_FORMAT_ERROR;
         }
+        return false;
     }
 
     /**
@@ -343,11 +475,29 @@ public class GifHeaderParser {
             return;
         }
 
+        header.currentFrame.keyframe = isKeyframe(header.currentFrame, header.frames.size());
         header.frameCount++;
         // Add image to frame.
         header.frames.add(header.currentFrame);
     }
 
+    /**
+     * A frame is a keyframe if nothing drawn before it is visible, either because it covers the canvas
+     * without transparency or because the previous frame is disposed to the background over the whole canvas.
+     */
+    private boolean isKeyframe(GifFrame frame, int index) {
+        if (index == 0) {
+            return true;
+        }
+        GifFrame previous = header.frames.get(index - 1);
+        return (!frame.transparency && coversCanvas(frame))
+                || (previous.dispose == DISPOSAL_BACKGROUND && coversCanvas(previous));
+    }
+
+    private boolean coversCanvas(GifFrame frame) {
+        return frame.ix == 0 && frame.iy == 0 && frame.iw >= header.width && frame.ih >= header.height;
+    }
+
     /**
      * Reads Netscape extension to obtain iteration count.
      */
@@ -0,0 +1,172 @@
+package org.snd.gifdecoder;
+
+import jakarta.annotation.Nonnull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the LZW compressed image data of a frame into color indices.
+ * <p>
+ * The data sub-blocks of a frame are first copied into one contiguous array, codes are then read from it
+ * with a 64-bit bit buffer that is refilled several bytes at a time instead of once per byte and block.
+ * <p>
+ * Every string table entry is the previous string followed by the first byte of the next one, so it can
+ * be found as-is in the pixels already decoded. Entries are kept as offset and length into the output and
+ * emitted with {@link System#arraycopy(Object, int, Object, int, int)}, instead of walking a prefix chain
+ * backwards through a pixel stack one byte at a time.
+ * <p>
+ * Working arrays are kept between frames, an instance must not be used from multiple threads.
+ */
+final class LzwDecoder {
+    /**
+     * Maximum number of string table entries, codes are at most 12 bits.
+     */
+    private static final int MAX_TABLE_SIZE = 4 * 1024;
+
+    private static final int NULL_CODE = -1;
+
+    private static final int MASK_INT_LOWEST_BYTE = 0x000000FF;
+
+    private static final int INITIAL_DATA_SIZE = 16 * 1024;
+
+    private final int[] offsets = new int[MAX_TABLE_SIZE];
+    private final int[] lengths = new int[MAX_TABLE_SIZE];
+    private byte[] data = new byte[INITIAL_DATA_SIZE];
+
+    /**
+     * Decodes the image data that starts at the position of {@code rawData}, i.e. the LZW minimum code size
+     * followed by the data sub-blocks. The position is left after the last sub-block read.
+     *
+     * @param pixels receives at most {@code npix} color indices
+     * @return the number of pixels decoded, less than {@code npix} if the data is truncated or ends early.
+     */
+    int decode(@Nonnull ByteBuffer rawData, @Nonnull byte[] pixels, int npix) {
+        int dataSize = rawData.get() & MASK_INT_LOWEST_BYTE;
+        int dataLength = flattenBlocks(rawData);
+        byte[] data = this.data;
+        int[] offsets = this.offsets;
+        int[] lengths = this.lengths;
+
+        int clear = 1 << dataSize;
+        int endOfInformation = clear + 1;
+        int available = clear + 2;
+        int codeSize = dataSize + 1;
+        int codeMask = (1 << codeSize) - 1;
+        int oldCode = NULL_CODE;
+        int oldOffset = 0;
+        int oldLength = 0;
+
+        long datum = 0;
+        int bits = 0;
+        int di = 0;
+        int pi = 0;
+        while (pi < npix) {
+            if (bits < codeSize) {
+                // Take as many whole bytes as fit into the bit buffer.
+                while (bits <= Long.SIZE - Byte.SIZE && di < dataLength) {
+                    datum |= ((long) data[di] & MASK_INT_LOWEST_BYTE) << bits;
+                    bits += Byte.SIZE;
+                    ++di;
+                }
+                if (bits < codeSize) {
+                    break;
+                }
+            }
+
+            // Get the next code.
+            int code = (int) datum & codeMask;
+            datum >>>= codeSize;
+            bits -= codeSize;
+
+            // Interpret the code.
+            if (code == clear) {
+                // Reset decoder.
+                codeSize = dataSize + 1;
+                codeMask = (1 << codeSize) - 1;
+                available = clear + 2;
+                oldCode = NULL_CODE;
+                continue;
+            } else if (code == endOfInformation) {
+                break;
+            } else if (oldCode == NULL_CODE) {
+                // The first code after a clear is a literal, anything else is corrupted data.
+                pixels[pi] = code < clear ? (byte) code : 0;
+                oldCode = code;
+                oldOffset = pi;
+                oldLength = 1;
+                ++pi;
+                continue;
+            }
+
+            int offset = pi;
+            int length;
+            if (code < clear) {
+                length = 1;
+                pixels[pi] = (byte) code;
+                ++pi;
+            } else if (code < available) {
+                length = lengths[code];
+                int count = Math.min(length, npix - pi);
+                System.arraycopy(pixels, offsets[code], pixels, pi, count);
+                pi += count;
+            } else {
+                // The code is the entry about to be added: the previous string followed by its own first byte.
+                length = oldLength + 1;
+                int count = Math.min(oldLength, npix - pi);
+                System.arraycopy(pixels, oldOffset, pixels, pi, count);
+                pi += count;
+                if (pi < npix) {
+                    pixels[pi] = pixels[oldOffset];
+                    ++pi;
+                }
+            }
+
+            // Add a new string to the string table, it's the previous string extended by one byte in place.
+            if (available < MAX_TABLE_SIZE) {
+                offsets[available] = oldOffset;
+                lengths[available] = oldLength + 1;
+                ++available;
+                if (((available & codeMask) == 0) && (available < MAX_TABLE_SIZE)) {
+                    ++codeSize;
+                    codeMask += available;
+                }
+            }
+            oldCode = code;
+            oldOffset = offset;
+            oldLength = length;
+        }
+        return pi;
+    }
+
+    /**
+     * Size in bytes of the working arrays.
+     */
+    int getByteSize() {
+        return data.length + (offsets.length + lengths.length) * Integer.BYTES;
+    }
+
+    /**
+     * Copies the data sub-blocks at the position of {@code rawData} into {@link #data}, up to the block
+     * terminator or the end of the buffer.
+     *
+     * @return the number of data bytes.
+     */
+    private int flattenBlocks(ByteBuffer rawData) {
+        int length = 0;
+        while (rawData.hasRemaining()) {
+            int blockSize = rawData.get() & MASK_INT_LOWEST_BYTE;
+            if (blockSize == 0) {
+                break;
+            }
+            int count = Math.min(blockSize, rawData.remaining());
+            if (length + count > data.length) {
+                byte[] grown = new byte[Math.max(data.length * 2, length + count)];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+            rawData.get(data, length, count);
+            length += count;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,19 @@
+package org.snd.gifdecoder;
+
+/**
+ * Pixel layouts supported by {@link GifDecoder#decodeNextFrameInto}.
+ * <p>
+ * Formats name the order of the color components in memory. For {@code int[]} destinations that is
+ * the order of the bytes of each int from the most significant one, for {@link java.nio.ByteBuffer}
+ * destinations it is the order of the bytes in the buffer regardless of the buffer's byte order.
+ */
+public enum PixelFormat {
+    /**
+     * Same layout as {@link java.awt.image.BufferedImage#TYPE_INT_ARGB}.
+     */
+    ARGB_8888,
+    /**
+     * Same layout as skia's {@code ColorType.BGRA_8888}.
+     */
+    BGRA_8888
+}
@@ -27,11 +27,11 @@ import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.Channels;
 import java.util.Arrays;
 
 import static org.snd.gifdecoder.GifFrame.*;
@@ -68,6 +68,10 @@ public class StandardGifDecoder implements GifDecoder {
 
     private static final int BYTES_PER_INTEGER = Integer.SIZE / 8;
 
+    private static final int DEFAULT_SNAPSHOT_INTERVAL = 16;
+
+    private static final int DEFAULT_MAX_SNAPSHOT_BYTES = 4 * 1024 * 1024;
+
     private static final int MASK_INT_LOWEST_BYTE = 0x000000FF;
 
     //    @ColorInt
@@ -105,13 +109,37 @@ public class StandardGifDecoder implements GifDecoder {
     private byte[] suffix;
     private byte[] pixelStack;
     private byte[] mainPixels;
+    private LzwDecoder lzwDecoder;
     //    @ColorInt
     private int[] mainScratch;
 
     private int framePointer;
     private GifHeader header;
-    private BufferedImage previousImage;
+    /**
+     * Canvas saved for frames following a {@link GifFrame#DISPOSAL_PREVIOUS} frame.
+     * Allocated once and reused, {@link #hasPreviousPixels} tracks whether it holds a valid canvas.
+     */
+    //    @ColorInt
+    private int[] previousPixels;
+    private boolean hasPreviousPixels;
     private boolean savePrevious;
+    /**
+     * Frame whose composition {@link #mainScratch} holds, or -1.
+     */
+    private int composedFrame = INITIAL_FRAME_POINTER;
+    /**
+     * Canvas after composing a frame, indexed by frame. Taken for gifs without close enough keyframes,
+     * see {@link #setSnapshotPolicy(int, int)}.
+     */
+    @Nullable
+    private Snapshot[] snapshots;
+    private int snapshotBytes;
+    private int snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+    private int maxSnapshotBytes = DEFAULT_MAX_SNAPSHOT_BYTES;
+    /**
+     * Frames composed since the last keyframe or snapshot.
+     */
+    private int framesSinceRestorePoint;
     private int status;
     private int sampleSize;
     private int downsampledHeight;
@@ -120,6 +148,16 @@ public class StandardGifDecoder implements GifDecoder {
     private Boolean isFirstFrameTransparent;
     //    @Nonnull
     private int bitmapConfig = BufferedImage.TYPE_INT_ARGB;
+    /**
+     * Forces every frame through {@link #copyCopyIntoScratchRobust(GifFrame)}.
+     * Only used by benchmarks to compare both copy paths on the same input.
+     */
+    boolean forceRobustCopy;
+    /**
+     * Decodes frames with {@link #decodeBitmapDataBlockwise(int)} instead of {@link LzwDecoder}.
+     * Only used by benchmarks to compare both LZW decoders on the same input.
+     */
+    boolean forceBlockwiseLzw;
 
     // Public API.
     @SuppressWarnings("unused")
@@ -198,6 +236,47 @@ public class StandardGifDecoder implements GifDecoder {
         framePointer = INITIAL_FRAME_POINTER;
     }
 
+    @Override
+    public synchronized void seekTo(int n) {
+        if (n < 0 || n >= header.frameCount) {
+            throw new IllegalArgumentException("Frame " + n + " out of range, frame count: " + header.frameCount);
+        }
+
+        // Walk back to the closest frame composing can start with.
+        int start = n;
+        while (start > 0 && start - 1 != composedFrame && !hasSnapshot(start - 1) && !isRestorableKeyframe(start)) {
+            start--;
+        }
+
+        if (start > 0 && start - 1 != composedFrame && hasSnapshot(start - 1)) {
+            restoreSnapshot(start - 1);
+        } else if (start == 0 || start - 1 != composedFrame) {
+            // A keyframe, nothing saved for earlier frames is used anymore.
+            hasPreviousPixels = false;
+        }
+
+        for (int i = start; i < n; i++) {
+            framePointer = i;
+            if (!composeNextFrame()) {
+                break;
+            }
+        }
+        framePointer = n;
+    }
+
+    /**
+     * Configures the snapshots of the canvas taken while decoding, {@link #seekTo(int)} resumes from them
+     * in gifs without close keyframes.
+     *
+     * @param interval frames composed since the last keyframe or snapshot before a snapshot is taken,
+     *                 0 disables snapshots.
+     * @param maxBytes memory all snapshots of the current gif may use.
+     */
+    public synchronized void setSnapshotPolicy(int interval, int maxBytes) {
+        snapshotInterval = interval;
+        maxSnapshotBytes = maxBytes;
+    }
+
     @Deprecated
     @Override
     public int getLoopCount() {
@@ -223,19 +302,90 @@ public class StandardGifDecoder implements GifDecoder {
         return header.loopCount + 1;
     }
 
+    /**
+     * Size in bytes the current gif needs. Pooled buffers can be larger from an earlier gif, see
+     * {@link #getRetainedByteSize()} for what the decoder actually holds.
+     */
     @Override
     public int getByteSize() {
-        return rawData.limit() + mainPixels.length + (mainScratch.length * BYTES_PER_INTEGER);
+        return rawData.limit() + header.width * header.height
+                + (downsampledWidth * downsampledHeight * BYTES_PER_INTEGER) + snapshotBytes;
     }
 
     @Nullable
     @Override
     public synchronized BufferedImage getNextFrame() {
+        if (!composeNextFrame()) {
+            return null;
+        }
+
+        // Set pixels for current image.
+        BufferedImage result = getNextBitmap();
+        result.setRGB(0, 0, downsampledWidth, downsampledHeight, mainScratch, 0, downsampledWidth);
+        return result;
+    }
+
+    @Override
+    public synchronized int decodeNextFrameInto(@Nonnull int[] dest, @Nonnull PixelFormat format) {
+        checkDestinationSize(dest.length);
+        if (!composeNextFrame()) {
+            return status;
+        }
+
+        final int[] src = mainScratch;
+        final int size = downsampledWidth * downsampledHeight;
+        if (format == PixelFormat.ARGB_8888) {
+            System.arraycopy(src, 0, dest, 0, size);
+        } else {
+            for (int i = 0; i < size; i++) {
+                dest[i] = argbToBgra(src[i]);
+            }
+        }
+        return status;
+    }
+
+    @Override
+    public synchronized int decodeNextFrameInto(@Nonnull ByteBuffer dest, @Nonnull PixelFormat format) {
+        checkDestinationSize(dest.remaining() / BYTES_PER_INTEGER);
+        if (!composeNextFrame()) {
+            return status;
+        }
+
+        final int[] src = mainScratch;
+        final int size = downsampledWidth * downsampledHeight;
+        final int start = dest.position();
+        // Pixel formats describe byte order in memory, compensate for the buffer's int order.
+        final boolean bgra = format == PixelFormat.BGRA_8888;
+        final boolean swap = bgra == (dest.order() == ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < size; i++) {
+            int color = src[i];
+            dest.putInt(start + i * BYTES_PER_INTEGER, swap ? Integer.reverseBytes(color) : color);
+        }
+        return status;
+    }
+
+    private void checkDestinationSize(int pixels) {
+        int required = downsampledWidth * downsampledHeight;
+        if (pixels < required) {
+            throw new IllegalArgumentException("Destination holds " + pixels + " pixels, frame requires " + required);
+        }
+    }
+
+    private static int argbToBgra(int color) {
+        return Integer.reverseBytes(color);
+    }
+
+    /**
+     * Decodes the frame at {@link #framePointer} into {@link #mainScratch}.
+     *
+     * @return false if the frame could not be decoded, {@link #status} holds the reason.
+     */
+    private boolean composeNextFrame() {
         if (header.frameCount <= 0 || framePointer < 0) {
             status = STATUS_FORMAT_ERROR;
         }
         if (status == STATUS_FORMAT_ERROR || status == STATUS_OPEN_ERROR) {
-            return null;
+            return false;
         }
         status = STATUS_OK;
 
@@ -255,7 +405,7 @@ public class StandardGifDecoder implements GifDecoder {
         if (act == null) {
             // No color table defined.
             status = STATUS_FORMAT_ERROR;
-            return null;
+            return false;
         }
 
         // Reset the transparent pixel in the color table
@@ -275,24 +425,84 @@ public class StandardGifDecoder implements GifDecoder {
             }
         }
 
-        // Transfer pixel data to image.
-        return setPixels(currentFrame, previousFrame);
+        // Transfer pixel data to scratch.
+        setPixels(currentFrame, previousFrame);
+        composedFrame = framePointer;
+        updateRestorePoints();
+        return true;
+    }
+
+    /**
+     * Frames composing can start with, their canvas does not depend on earlier frames. Unless a keyframe
+     * saves its own canvas, earlier frames may still show through a later {@link GifFrame#DISPOSAL_PREVIOUS}.
+     */
+    private boolean isRestorableKeyframe(int n) {
+        GifFrame frame = header.frames.get(n);
+        return n == 0 || (frame.keyframe && (!savePrevious || frame.dispose == DISPOSAL_NONE));
+    }
+
+    private boolean hasSnapshot(int n) {
+        return snapshots != null && snapshots[n] != null;
+    }
+
+    /**
+     * Snapshots the canvas of {@link #composedFrame} once it is {@link #snapshotInterval} frames away
+     * from the last keyframe or snapshot.
+     */
+    private void updateRestorePoints() {
+        if (isRestorableKeyframe(composedFrame) || hasSnapshot(composedFrame)) {
+            framesSinceRestorePoint = 0;
+            return;
+        }
+        framesSinceRestorePoint++;
+        if (snapshotInterval <= 0 || framesSinceRestorePoint < snapshotInterval) {
+            return;
+        }
+
+        int size = downsampledWidth * downsampledHeight;
+        int bytes = size * BYTES_PER_INTEGER * (hasPreviousPixels ? 2 : 1);
+        if (snapshotBytes + bytes > maxSnapshotBytes) {
+            return;
+        }
+        if (snapshots == null) {
+            snapshots = new Snapshot[header.frameCount];
+        }
+        snapshots[composedFrame] = new Snapshot(
+                Arrays.copyOf(mainScratch, size),
+                hasPreviousPixels ? Arrays.copyOf(previousPixels, size) : null);
+        snapshotBytes += bytes;
+        framesSinceRestorePoint = 0;
+    }
+
+    private void restoreSnapshot(int n) {
+        Snapshot snapshot = snapshots[n];
+        System.arraycopy(snapshot.canvas, 0, mainScratch, 0, snapshot.canvas.length);
+        hasPreviousPixels = snapshot.previous != null;
+        if (hasPreviousPixels) {
+            if (previousPixels == null || previousPixels.length < snapshot.previous.length) {
+                previousPixels = new int[mainScratch.length];
+            }
+            System.arraycopy(snapshot.previous, 0, previousPixels, 0, snapshot.previous.length);
+        }
+        composedFrame = n;
+        framesSinceRestorePoint = 0;
+    }
+
+    private void clearRestorePoints() {
+        composedFrame = INITIAL_FRAME_POINTER;
+        snapshots = null;
+        snapshotBytes = 0;
+        framesSinceRestorePoint = 0;
     }
 
     @Override
     public int read(@Nullable InputStream is, int contentLength) {
         if (is != null) {
             try {
-                int capacity = (contentLength > 0) ? (contentLength + 4 * 1024) : 16 * 1024;
-                ByteArrayOutputStream buffer = new ByteArrayOutputStream(capacity);
-                int nRead;
-                byte[] data = new byte[16 * 1024];
-                while ((nRead = is.read(data, 0, data.length)) != -1) {
-                    buffer.write(data, 0, nRead);
-                }
-                buffer.flush();
-
-                read(buffer.toByteArray());
+                // Parsed while reading, the received bytes are decoded in place without another copy.
+                StreamingGifParser streamingParser = new StreamingGifParser(contentLength);
+                GifHeader streamedHeader = streamingParser.readFully(Channels.newChannel(is));
+                setData(streamedHeader, streamingParser.getData());
             } catch (IOException e) {
                 // ignore
             }
@@ -314,9 +524,11 @@ public class StandardGifDecoder implements GifDecoder {
     @Override
     public void clear() {
         header = null;
-        previousImage = null;
+        hasPreviousPixels = false;
+        previousPixels = null;
         rawData = null;
         isFirstFrameTransparent = null;
+        clearRestorePoints();
     }
 
     @Override
@@ -357,10 +569,52 @@ public class StandardGifDecoder implements GifDecoder {
         this.sampleSize = sampleSize;
         downsampledWidth = header.width / sampleSize;
         downsampledHeight = header.height / sampleSize;
-        // Now that we know the size, init scratch arrays.
+        // Now that we know the size, init scratch arrays. Arrays of a previous gif are kept if they are
+        // large enough, see GifDecoderPool.
         // TODO Find a way to avoid this entirely or at least downsample it (either should be possible).
-        mainPixels = new byte[header.width * header.height];
-        mainScratch = new int[downsampledWidth * downsampledHeight];
+        if (mainPixels == null || mainPixels.length < header.width * header.height) {
+            mainPixels = new byte[header.width * header.height];
+        }
+        if (mainScratch == null || mainScratch.length < downsampledWidth * downsampledHeight) {
+            mainScratch = new int[downsampledWidth * downsampledHeight];
+        }
+        hasPreviousPixels = false;
+        clearRestorePoints();
+    }
+
+    /**
+     * Drops the current gif but keeps LZW tables and pixel buffers for the next {@link #setData} call.
+     * Snapshots are dropped and their policy is reset.
+     */
+    synchronized void recycle() {
+        header = new GifHeader();
+        rawData = null;
+        framePointer = INITIAL_FRAME_POINTER;
+        hasPreviousPixels = false;
+        isFirstFrameTransparent = null;
+        clearRestorePoints();
+        snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+        maxSnapshotBytes = DEFAULT_MAX_SNAPSHOT_BYTES;
+    }
+
+    /**
+     * Size in bytes of the buffers retained by {@link #recycle()}.
+     */
+    synchronized int getRetainedByteSize() {
+        int size = 0;
+        if (mainPixels != null) {
+            size += mainPixels.length;
+        }
+        if (mainScratch != null) {
+            size += mainScratch.length * BYTES_PER_INTEGER;
+        }
+        if (previousPixels != null) {
+            size += previousPixels.length * BYTES_PER_INTEGER;
+        }
+        if (lzwDecoder != null) {
+            size += lzwDecoder.getByteSize();
+        }
+        return size;
     }
 
     @Nonnull
@@ -392,25 +646,25 @@ public class StandardGifDecoder implements GifDecoder {
     }
 
     /**
-     * Creates new frame image from current data (and previous frames as specified by their
-     * disposition codes).
+     * Composes the current frame into {@link #mainScratch} from current data (and previous frames as
+     * specified by their disposition codes).
      */
-    private BufferedImage setPixels(GifFrame currentFrame, GifFrame previousFrame) {
+    private void setPixels(GifFrame currentFrame, GifFrame previousFrame) {
         // Final location of blended pixels.
         final int[] dest = mainScratch;
 
         // clear all pixels when meet first frame and drop prev image from last loop
         if (previousFrame == null) {
-            previousImage = null;
-            Arrays.fill(dest, COLOR_TRANSPARENT_BLACK);
+            hasPreviousPixels = false;
+            Arrays.fill(dest, 0, downsampledWidth * downsampledHeight, COLOR_TRANSPARENT_BLACK);
         }
 
-        // clear all pixels when dispose is 3 but previousImage is null.
-        // When DISPOSAL_PREVIOUS and previousImage didn't be set, new frame should draw on
+        // clear all pixels when dispose is 3 but previous pixels were not saved.
+        // When DISPOSAL_PREVIOUS and previous pixels didn't be set, new frame should draw on
         // a empty image
         if (previousFrame != null && previousFrame.dispose == DISPOSAL_PREVIOUS
-                && previousImage == null) {
-            Arrays.fill(dest, COLOR_TRANSPARENT_BLACK);
+                && !hasPreviousPixels) {
+            Arrays.fill(dest, 0, downsampledWidth * downsampledHeight, COLOR_TRANSPARENT_BLACK);
         }
 
         // fill in starting image contents based on last image's dispose code
@@ -439,16 +693,16 @@ public class StandardGifDecoder implements GifDecoder {
                         dest[pointer] = c;
                     }
                 }
-            } else if (previousFrame.dispose == DISPOSAL_PREVIOUS && previousImage != null) {
+            } else if (previousFrame.dispose == DISPOSAL_PREVIOUS && hasPreviousPixels) {
                 // Start with the previous frame
-                previousImage.getRGB(0, 0, downsampledWidth, downsampledHeight, dest, 0, downsampledWidth);
+                System.arraycopy(previousPixels, 0, dest, 0, downsampledWidth * downsampledHeight);
             }
         }
 
         // Decode pixels for this frame into the global pixels[] scratch.
         decodeBitmapData(currentFrame);
 
-        if (currentFrame.interlace || sampleSize != 1) {
+        if (forceRobustCopy || currentFrame.interlace || sampleSize != 1) {
             copyCopyIntoScratchRobust(currentFrame);
         } else {
             copyIntoScratchFast(currentFrame);
@@ -457,16 +711,12 @@ public class StandardGifDecoder implements GifDecoder {
         // Copy pixels into previous image
         if (savePrevious && (currentFrame.dispose == DISPOSAL_UNSPECIFIED
                 || currentFrame.dispose == DISPOSAL_NONE)) {
-            if (previousImage == null) {
-                previousImage = getNextBitmap();
+            if (previousPixels == null || previousPixels.length < dest.length) {
+                previousPixels = new int[dest.length];
             }
-            previousImage.setRGB(0, 0, downsampledWidth, downsampledHeight, dest, 0, downsampledWidth);
+            System.arraycopy(dest, 0, previousPixels, 0, downsampledWidth * downsampledHeight);
+            hasPreviousPixels = true;
         }
-
-        // Set pixels for current image.
-        BufferedImage result = getNextBitmap();
-        result.setRGB(0, 0, downsampledWidth, downsampledHeight, dest, 0, downsampledWidth);
-        return result;
     }
 
     private void copyIntoScratchFast(GifFrame currentFrame) {
@@ -659,7 +909,7 @@ public class StandardGifDecoder implements GifDecoder {
     }
 
     /**
-     * Decodes LZW image data into pixel array. Adapted from John Cristy's BitmapMagick.
+     * Decodes LZW image data into pixel array.
      */
     private void decodeBitmapData(GifFrame frame) {
         if (frame != null) {
@@ -668,13 +918,33 @@ public class StandardGifDecoder implements GifDecoder {
         }
 
         int npix = (frame == null) ? header.width * header.height : frame.iw * frame.ih;
-        int available, clear, codeMask, codeSize, endOfInformation, inCode, oldCode, bits, code, count,
-                i, datum, dataSize, first, top, bi, pi;
-
         if (mainPixels == null || mainPixels.length < npix) {
             // Allocate new pixel array.
             mainPixels = new byte[npix];
         }
+
+        if (forceBlockwiseLzw) {
+            decodeBitmapDataBlockwise(npix);
+            return;
+        }
+        if (lzwDecoder == null) {
+            lzwDecoder = new LzwDecoder();
+        }
+        int pi = lzwDecoder.decode(rawData, mainPixels, npix);
+        if (pi < npix) {
+            status = STATUS_PARTIAL_DECODE;
+            // Clear missing pixels.
+            Arrays.fill(mainPixels, pi, npix, (byte) COLOR_TRANSPARENT_BLACK);
+        }
+    }
+
+    /**
+     * Decodes LZW image data one sub-block and one byte at a time. Adapted from John Cristy's BitmapMagick.
+     */
+    private void decodeBitmapDataBlockwise(int npix) {
+        int available, clear, codeMask, codeSize, endOfInformation, inCode, oldCode, bits, code, count,
+                i, datum, dataSize, first, top, bi, pi;
+
         byte[] mainPixels = this.mainPixels;
         if (prefix == null) {
             prefix = new short[MAX_STACK_SIZE];
@@ -816,4 +1086,15 @@ public class StandardGifDecoder implements GifDecoder {
                 ? BufferedImage.TYPE_INT_ARGB : bitmapConfig;
         return new BufferedImage(downsampledWidth, downsampledHeight, config);
     }
+
+    private static final class Snapshot {
+        final int[] canvas;
+        @Nullable
+        final int[] previous;
+
+        Snapshot(int[] canvas, @Nullable int[] previous) {
+            this.canvas = canvas;
+            this.previous = previous;
+        }
+    }
 }
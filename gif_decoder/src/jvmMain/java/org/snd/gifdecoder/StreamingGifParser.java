@@ -0,0 +1,124 @@
+package org.snd.gifdecoder;
+
+import jakarta.annotation.Nonnull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Parses a GIF while it is being received, e.g. from a network response, so that decoding can start
+ * before the download completes.
+ * <p>
+ * Received bytes are kept in a single growing array that is parsed block by block as it fills up, frame
+ * offsets are recorded as soon as the image data of a frame is complete. {@link #getHeader()} and
+ * {@link #getData()} can be passed to {@link StandardGifDecoder#setData(GifHeader, ByteBuffer)} at any
+ * time to decode the frames received so far, a new decoder or setData call is needed to see later frames.
+ * <p>
+ * A single thread reads, other threads may take headers and data concurrently.
+ */
+public class StreamingGifParser {
+    private static final int DEFAULT_CAPACITY = 16 * 1024;
+
+    private final GifHeaderParser parser = new GifHeaderParser();
+    private final byte[] discard = new byte[64];
+    private byte[] data;
+    private int length;
+    private boolean parsed;
+    private boolean endOfStream;
+
+    public StreamingGifParser() {
+        this(-1);
+    }
+
+    /**
+     * @param contentLength expected size of the GIF, e.g. from a Content-Length header, or -1 if unknown.
+     */
+    public StreamingGifParser(int contentLength) {
+        data = new byte[contentLength > 0 ? contentLength : DEFAULT_CAPACITY];
+        parser.beginStreaming();
+    }
+
+    /**
+     * Reads the next bytes from the channel and parses every block they complete. Blocks until the
+     * channel has bytes available.
+     *
+     * @return number of bytes read or -1 at the end of the channel.
+     */
+    public int read(@Nonnull ReadableByteChannel channel) throws IOException {
+        ByteBuffer target;
+        synchronized (this) {
+            if (parsed) {
+                // Anything after the trailer is not part of the GIF, it's only read to find the end.
+                target = ByteBuffer.wrap(discard);
+            } else {
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+                target = ByteBuffer.wrap(data, length, data.length - length);
+            }
+        }
+
+        // Readers of the header only look at bytes up to length, the channel can write past it unlocked.
+        int read = channel.read(target);
+
+        synchronized (this) {
+            if (read < 0) {
+                endOfStream = true;
+            } else if (!parsed) {
+                length += read;
+                parsed = parser.parseAvailable(ByteBuffer.wrap(data, 0, length));
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Reads the channel to its end.
+     *
+     * @return the complete header.
+     */
+    @Nonnull
+    public GifHeader readFully(@Nonnull ReadableByteChannel channel) throws IOException {
+        //noinspection StatementWithEmptyBody
+        while (read(channel) >= 0) {
+        }
+        return getHeader();
+    }
+
+    /**
+     * Header with every frame received so far. Once the channel ended, a GIF without a complete frame
+     * has {@link GifDecoder#STATUS_FORMAT_ERROR}, frames of a truncated GIF are kept.
+     */
+    @Nonnull
+    public synchronized GifHeader getHeader() {
+        GifHeader header = parser.getStreamingHeader().copy();
+        if (endOfStream && header.status == GifDecoder.STATUS_OK && header.frameCount == 0) {
+            header.status = GifDecoder.STATUS_FORMAT_ERROR;
+        }
+        return header;
+    }
+
+    /**
+     * Bytes received so far, frame offsets of {@link #getHeader()} point into this buffer.
+     */
+    @Nonnull
+    public synchronized ByteBuffer getData() {
+        return ByteBuffer.wrap(data, 0, length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Number of frames that can be decoded from the bytes received so far.
+     */
+    public synchronized int getFrameCount() {
+        return parser.getStreamingHeader().frameCount;
+    }
+
+    /**
+     * True once the trailer was parsed, the data turned out not to be a valid GIF or the channel ended.
+     */
+    public synchronized boolean isComplete() {
+        return parsed || endOfStream;
+    }
+}
@@ -5,6 +5,7 @@ include(":shared")
 include(":desktopApp")
 include(":mpv")
 include("gif_decoder")
+include(":benchmarks")
 
 pluginManagement {
     repositories {
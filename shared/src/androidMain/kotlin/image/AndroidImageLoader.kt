@@ -29,6 +29,7 @@ class AndroidImageLoader : ImageLoader {
         emoteDimensions: ChatState.EmoteDimensions,
         maxHeight:Int?,
         maxWidth:Int?,
+        priority: ImagePriority,
     ) {
         Box {
             val painter = rememberAsyncImagePainter(emote.url)
@@ -10,5 +10,27 @@ interface ImageLoader {
         emoteDimensions: ChatState.EmoteDimensions,
         maxHeight:Int?,
         maxWidth:Int?,
+        priority: ImagePriority,
     )
+
+    /**
+     * Downloads and scales [emotes] in background ahead of their first use, most used first according to [usage].
+     * Replaces the previous prefetch.
+     */
+    fun prefetch(
+        emotes: List<ChatState.Emote>,
+        maxHeight: Int?,
+        maxWidth: Int?,
+        usage: (ChatState.Emote) -> Int,
+    ) {
+    }
+}
+
+/**
+ * Order in which image downloads are served, from most to least urgent.
+ */
+enum class ImagePriority {
+    CHAT,
+    EMOTE_MENU,
+    PREFETCH,
 }
\ No newline at end of file
@@ -11,6 +11,7 @@ data class Settings(
     val historySize: Int = 1000,
     val accountName: String? = null,
     val showUserConnectionMessages: Boolean = true,
+    val prefetchEmotes: Boolean = true,
 
     val player: PlayerType? = null,
     val favoriteChannels: List<String> = emptyList()
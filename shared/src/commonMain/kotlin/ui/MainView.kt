@@ -53,6 +53,7 @@ fun createModel(httpClient: OkHttpClient, imageLoader: ImageLoader): AppState {
             username = config.accountName
             playerType = config.player
             favoriteChannels.value = config.favoriteChannels
+            prefetchEmotes = config.prefetchEmotes
 
         }
     }
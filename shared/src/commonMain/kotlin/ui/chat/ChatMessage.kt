@@ -20,6 +20,7 @@ import androidx.compose.ui.unit.TextUnit
 import androidx.compose.ui.unit.dp
 import androidx.compose.ui.unit.sp
 import image.ImageLoader
+import image.ImagePriority
 import org.jsoup.Jsoup
 import org.jsoup.nodes.Element
 import org.jsoup.nodes.TextNode
@@ -243,7 +244,8 @@ fun emoteInlineContent(
             emote = emote,
             emoteDimensions = emote.messageDimensions,
             maxHeight = emoteSize.value.toInt(),
-            maxWidth = emoteSize.value.toInt()
+            maxWidth = emoteSize.value.toInt(),
+            priority = ImagePriority.CHAT
         )
     }
 }
@@ -11,6 +11,7 @@ import ui.ConnectionStatus
 import ui.poll.PollState
 import ui.settings.SettingsState
 import java.time.Instant
+import java.util.concurrent.ConcurrentHashMap
 
 class ChatState(
     private val cytube: CytubeClient,
@@ -23,6 +24,7 @@ class ChatState(
     val messages = MutableStateFlow(listOf<Message>())
     val channelEmotes = MutableStateFlow(emptyMap<String, Emote>())
     val customEmotes = MutableStateFlow(emptyMap<String, Emote>())
+    private val emoteUsage = ConcurrentHashMap<String, Int>()
 
     var users = Users()
     val messageInput = MessageInputState()
@@ -43,9 +45,17 @@ class ChatState(
         if (lastTimestamp != null && !message.timestamp.isAfter(lastTimestamp)) return
 
         addMessage(message)
+        countEmoteUsage(message.message)
         this.lastUserMessageTimestamp.value = message.timestamp
     }
 
+    private fun countEmoteUsage(message: String) {
+        val channelEmotes = channelEmotes.value
+        message.split(" ")
+            .filter { channelEmotes.containsKey(it) }
+            .forEach { emoteUsage.merge(it, 1, Int::plus) }
+    }
+
     fun addAnnouncementMessage(message: Message.AnnouncementMessage) {
         addMessage(message)
     }
@@ -103,6 +113,10 @@ class ChatState(
 
     fun setEmotes(emotes: List<Emote>) {
         channelEmotes.value = emotes.associateBy { it.name }
+        if (settings.prefetchEmotes) {
+            val emoteSize = settings.emoteSize.value.toInt()
+            imageLoader.prefetch(emotes, maxHeight = emoteSize, maxWidth = emoteSize) { emoteUsage[it.name] ?: 0 }
+        }
     }
 
     fun updateEmote(emote: Emote) {
@@ -17,6 +17,7 @@ import androidx.compose.runtime.setValue
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.unit.dp
+import image.ImagePriority
 import ui.common.AppTheme
 import ui.common.LocalWindowSize
 import ui.common.WindowSize
@@ -71,7 +72,8 @@ fun Emote(emote: ChatState.Emote, chat: ChatState) {
             emote = emote,
             emoteDimensions = emote.emoteMenuDimensions,
             maxHeight = 100,
-            maxWidth = 100
+            maxWidth = 100,
+            priority = ImagePriority.EMOTE_MENU
         )
     }
 }
\ No newline at end of file
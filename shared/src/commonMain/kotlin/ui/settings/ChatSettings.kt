@@ -75,5 +75,15 @@ fun ChatSettings(settings: SettingsState) {
             )
             Text("Show User Connection Messages")
         }
+
+        Row(verticalAlignment = Alignment.CenterVertically) {
+            Checkbox(
+                checked = settings.prefetchEmotes,
+                onCheckedChange = {
+                    settings.prefetchEmotes = !settings.prefetchEmotes
+                }
+            )
+            Text("Prefetch Channel Emotes")
+        }
     }
 }
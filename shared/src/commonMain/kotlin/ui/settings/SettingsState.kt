@@ -24,6 +24,7 @@ class SettingsState(
     var emoteSize by mutableStateOf(120.sp)
     var timestampFormat by mutableStateOf("")
     var showUserConnectionMessages by mutableStateOf(true)
+    var prefetchEmotes by mutableStateOf(true)
     var historySize by mutableStateOf(0)
     var username by mutableStateOf<String?>(null)
     var allowGuestLogin by mutableStateOf(false)
@@ -43,7 +44,8 @@ class SettingsState(
                 accountName = username,
                 player = playerType,
                 favoriteChannels = favoriteChannels.value,
-                showUserConnectionMessages = showUserConnectionMessages
+                showUserConnectionMessages = showUserConnectionMessages,
+                prefetchEmotes = prefetchEmotes
             )
         )
     }
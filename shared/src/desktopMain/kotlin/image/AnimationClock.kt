@@ -0,0 +1,84 @@
+package image
+
+import androidx.compose.runtime.getValue
+import androidx.compose.runtime.mutableStateOf
+import androidx.compose.runtime.setValue
+import androidx.compose.runtime.withFrameMillis
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+
+/**
+ * Process wide driver for animated emotes.
+ *
+ * A single coroutine ticks once per display frame and advances every registered [FrameAnimation].
+ * All animations share one timeline, so copies of the same emote play in sync, and only animations
+ * whose frame index actually changed write state and get redrawn.
+ */
+object AnimationClock {
+    private val animations = LinkedHashSet<FrameAnimation>()
+    private val driver = Mutex()
+
+    /**
+     * Keeps [animation] registered until the calling coroutine is cancelled.
+     * Must be called from a coroutine with the composition frame clock, e.g. LaunchedEffect.
+     */
+    suspend fun run(animation: FrameAnimation): Nothing {
+        animations.add(animation)
+        try {
+            // only one of the registered coroutines drives the clock, the rest wait to take over
+            driver.withLock {
+                while (true) {
+                    withFrameMillis { time -> animations.forEach { it.update(time) } }
+                }
+            }
+        } finally {
+            animations.remove(animation)
+        }
+    }
+}
+
+class FrameAnimation(delays: List<Int>) {
+    private val timeline = FrameTimeline(delays)
+
+    var frameIndex by mutableStateOf(0)
+        private set
+
+    internal fun update(timeMillis: Long) {
+        if (timeline.frameCount <= 1) return
+
+        val index = timeline.frameAt(timeMillis)
+        if (index != frameIndex) frameIndex = index
+    }
+}
+
+/**
+ * Maps the time of the shared animation timeline to frames, animations loop from time 0.
+ */
+class FrameTimeline(delays: List<Int>) {
+    private val frameEnds: IntArray
+    private val duration: Int
+
+    val frameCount get() = frameEnds.size
+
+    init {
+        var time = 0
+        frameEnds = IntArray(delays.size) { index ->
+            time += displayDelay(delays[index])
+            time
+        }
+        duration = time
+    }
+
+    fun frameAt(timeMillis: Long): Int {
+        if (duration == 0) return 0
+
+        val position = (timeMillis % duration).toInt()
+        val index = frameEnds.binarySearch(position)
+        return if (index >= 0) index + 1 else -(index + 1)
+    }
+}
+
+/**
+ * Time a frame is shown for, gif frames without a delay are shown for 100ms.
+ */
+fun displayDelay(delay: Int) = if (delay == 0) 100 else delay
@@ -3,13 +3,70 @@ package image
 import org.apache.tika.config.TikaConfig
 import org.apache.tika.metadata.Metadata
 
+/**
+ * Detects image media types from their signature, formats served as emotes are recognized without Tika.
+ * Tika is only created and used for anything else.
+ */
 object ContentDetector {
+    const val GIF = "image/gif"
+    const val PNG = "image/png"
+    const val APNG = "image/apng"
+    const val JPEG = "image/jpeg"
+    const val WEBP = "image/webp"
 
-    private val tika: TikaConfig = TikaConfig()
+    private val PNG_SIGNATURE = byteArrayOf(0x89.toByte(), 0x50, 0x4E, 0x47, 0x0D, 0x0A, 0x1A, 0x0A)
+    private const val PNG_ANIMATION_CONTROL = 0x6163544C // acTL
+    private const val PNG_IMAGE_DATA = 0x49444154 // IDAT
 
-    fun getMediaType(data: ByteArray) = tika.detector.detect(data.inputStream(), Metadata()).toString()
+    private val tika: TikaConfig by lazy { TikaConfig() }
+
+    fun getMediaType(data: ByteArray) = detectSignature(data) ?: detectWithTika(data)
 
     fun isSupported(data: ByteArray) = isSupportedMediaType(getMediaType(data))
 
     fun isSupportedMediaType(type: String) = type.startsWith("image/")
-}
\ No newline at end of file
+
+    fun detectWithTika(data: ByteArray): String = tika.detector.detect(data.inputStream(), Metadata()).toString()
+
+    fun detectSignature(data: ByteArray): String? = when {
+        data.startsWith("GIF87a") || data.startsWith("GIF89a") -> GIF
+        data.startsWith(PNG_SIGNATURE) -> if (isAnimatedPng(data)) APNG else PNG
+        data.size >= 3 && data[0] == 0xFF.toByte() && data[1] == 0xD8.toByte() && data[2] == 0xFF.toByte() -> JPEG
+        data.startsWith("RIFF") && data.startsWith("WEBP", offset = 8) -> WEBP
+        else -> null
+    }
+
+    /**
+     * Animated pngs have an acTL chunk before the first IDAT chunk.
+     */
+    private fun isAnimatedPng(data: ByteArray): Boolean {
+        var offset = PNG_SIGNATURE.size
+        while (offset + 8 <= data.size) {
+            val length = data.readInt(offset)
+            when (data.readInt(offset + 4)) {
+                PNG_ANIMATION_CONTROL -> return true
+                PNG_IMAGE_DATA -> return false
+            }
+            if (length < 0 || length > data.size) return false
+            // length, type, data and crc
+            offset += 12 + length
+        }
+        return false
+    }
+
+    private fun ByteArray.readInt(offset: Int) =
+        (this[offset].toInt() and 0xFF shl 24) or
+                (this[offset + 1].toInt() and 0xFF shl 16) or
+                (this[offset + 2].toInt() and 0xFF shl 8) or
+                (this[offset + 3].toInt() and 0xFF)
+
+    private fun ByteArray.startsWith(signature: ByteArray, offset: Int = 0): Boolean {
+        if (size < offset + signature.size) return false
+        return signature.indices.all { this[offset + it] == signature[it] }
+    }
+
+    private fun ByteArray.startsWith(signature: String, offset: Int = 0): Boolean {
+        if (size < offset + signature.length) return false
+        return signature.indices.all { this[offset + it] == signature[it].code.toByte() }
+    }
+}
@@ -1,6 +1,5 @@
 package image
 
-import androidx.compose.animation.core.*
 import androidx.compose.foundation.Image
 import androidx.compose.foundation.background
 import androidx.compose.foundation.layout.Box
@@ -17,6 +16,8 @@ import androidx.compose.ui.Modifier
 import androidx.compose.ui.graphics.FilterQuality
 import androidx.compose.ui.graphics.ImageBitmap
 import androidx.compose.ui.graphics.asComposeImageBitmap
+import androidx.compose.ui.graphics.painter.BitmapPainter
+import androidx.compose.ui.graphics.painter.Painter
 import androidx.compose.ui.layout.ContentScale
 import androidx.compose.ui.text.TextStyle
 import androidx.compose.ui.text.font.FontWeight
@@ -24,8 +25,15 @@ import androidx.compose.ui.text.style.TextAlign
 import androidx.compose.ui.unit.dp
 import image.ScaledImage.AnimatedImage
 import image.ScaledImage.StaticImage
+import image.ScaledImage.StreamingAnimatedImage
 import image.ScaledImagesDiskCache.*
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import mu.KotlinLogging
 import okhttp3.OkHttpClient
@@ -36,21 +44,56 @@ import org.jetbrains.skia.ColorInfo
 import org.jetbrains.skia.ColorSpace.Companion.sRGB
 import org.jetbrains.skia.ColorType.BGRA_8888
 import org.jetbrains.skia.ImageInfo
+import org.jetbrains.skia.Pixmap
+import org.jetbrains.skia.impl.BufferUtil
+import org.snd.gifdecoder.GifHeader
+import org.snd.gifdecoder.GifHeaderParser
 import ui.chat.ChatState
 import ui.chat.ChatState.EmoteDimensions
 import ui.common.AppTheme
 import ui.platform.Tooltip
 import java.awt.image.BufferedImage
+import java.lang.ref.Reference
 import java.nio.ByteBuffer
 import java.util.*
+import java.util.concurrent.atomic.AtomicLong
 
 private val logger = KotlinLogging.logger {}
 
+/**
+ * Emotes downloaded and scaled at once by prefetch, bounds its share of cpu and connections.
+ */
+private const val PREFETCH_WORKERS = 2
+
+/**
+ * @param streamingFrameThreshold gifs with more frames than this are played as [StreamingGifAnimation]
+ * instead of decoding and scaling every frame up front
+ * @param minFrameInterval display interval in milliseconds, shorter gif frames are dropped when scaling
+ * @param memoryCacheSize budget in bytes for decoded images kept in memory
+ * @param prefetchDownloadBudget bytes prefetch may download per emote list, emotes already on disk don't count
+ */
 class DesktopImageLoader(
     client: OkHttpClient,
+    private val streamingFrameThreshold: Int = 30,
+    private val minFrameInterval: Int = 16,
+    memoryCacheSize: Long = 128L * 1024 * 1024,
+    private val prefetchDownloadBudget: Long = 64L * 1024 * 1024,
 ) : ImageLoader {
-    private val networkImageLoader = NetworkImageLoader(client)
+    private val networkImageLoader = NetworkImageLoader(client, onImageUpdated = { memoryCache.removeUrl(it) })
     private val cache = ScaledImagesDiskCache().apply { initialize() }
+    private val memoryCache = MemoryImageCache(memoryCacheSize)
+    private val diskCacheLoadNanos = AtomicLong()
+    private val mappedBytes = AtomicLong()
+    private val scaledGifs = AtomicLong()
+    private val staticGifs = AtomicLong()
+    private val loadingScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val cachedLoads = SingleFlight<CacheKey, ScaledImage?>(loadingScope)
+    private val scalingRequests = SingleFlight<CacheKey, ScaledImage>(loadingScope)
+    private var prefetchJob: Job? = null
+
+    fun memoryCacheStats() = memoryCache.stats()
+
+    fun gifStats() = GifStats(scaledGifs = scaledGifs.get(), staticGifs = staticGifs.get())
 
     @Composable
     override fun LoadEmoteImage(
@@ -58,13 +101,22 @@ class DesktopImageLoader(
         emoteDimensions: EmoteDimensions,
         maxHeight: Int?,
         maxWidth: Int?,
+        priority: ImagePriority,
     ) {
-        val loadingState: MutableState<LoadState<ScaledImage>> =
-            remember(maxHeight, maxWidth) { mutableStateOf(LoadState.Loading()) }
+        val loadingState: MutableState<LoadState<ScaledImage>> = remember(maxHeight, maxWidth, emote.url, emoteDimensions) {
+            // skip the loading indicator when the image is already decoded, the only memory cache lookup of a load
+            val inMemory = memoryCache.get(CacheKey(emote.url, scaleMaxWidth = maxWidth, scaleMaxHeight = maxHeight))
+            if (inMemory != null) {
+                emoteDimensions.width = inMemory.width
+                emoteDimensions.height = inMemory.height
+            }
+            mutableStateOf(inMemory?.let { LoadState.Success(it) } ?: LoadState.Loading())
+        }
 
-        LaunchedEffect(maxHeight, maxWidth, emote.url) {
+        LaunchedEffect(maxHeight, maxWidth, emote.url, emoteDimensions) {
+            if (loadingState.value is LoadState.Success) return@LaunchedEffect
             withContext(Dispatchers.IO) {
-                loadingState.value = loadImage(emote, emoteDimensions, maxHeight, maxWidth)
+                loadingState.value = loadImage(emote, emoteDimensions, maxHeight, maxWidth, priority)
             }
         }
 
@@ -75,6 +127,84 @@ class DesktopImageLoader(
         }
     }
 
+    @Synchronized
+    override fun prefetch(
+        emotes: List<ChatState.Emote>,
+        maxHeight: Int?,
+        maxWidth: Int?,
+        usage: (ChatState.Emote) -> Int,
+    ) {
+        prefetchJob?.cancel()
+        prefetchJob = loadingScope.launch { prefetchEmotes(emotes, maxHeight, maxWidth, usage) }
+    }
+
+    /**
+     * The most used remaining emote is picked each time, usage keeps changing while chat history arrives.
+     * Prefetched images are only written to disk cache, they would push visible emotes out of memory.
+     */
+    private suspend fun prefetchEmotes(
+        emotes: List<ChatState.Emote>,
+        maxHeight: Int?,
+        maxWidth: Int?,
+        usage: (ChatState.Emote) -> Int,
+    ) {
+        val remaining = emotes.toMutableList()
+        val downloadedBytes = AtomicLong()
+        val start = System.currentTimeMillis()
+
+        coroutineScope {
+            repeat(PREFETCH_WORKERS) {
+                launch {
+                    while (downloadedBytes.get() < prefetchDownloadBudget) {
+                        val emote = synchronized(remaining) {
+                            remaining.maxByOrNull(usage)?.also { remaining.remove(it) }
+                        } ?: break
+
+                        val key = CacheKey(emote.url, scaleMaxWidth = maxWidth, scaleMaxHeight = maxHeight)
+                        try {
+                            downloadedBytes.addAndGet(prefetchImage(key))
+                        } catch (e: CancellationException) {
+                            throw e
+                        } catch (e: Exception) {
+                            logger.warn { "failed to prefetch ${emote.url}: ${e.message}" }
+                        }
+                    }
+                }
+            }
+        }
+
+        logger.info {
+            "prefetched ${emotes.size - remaining.size} of ${emotes.size} emotes, " +
+                    "downloaded ${downloadedBytes.get() / 1024}KiB in ${System.currentTimeMillis() - start}ms; " +
+                    gifStats().let { "${it.staticGifs} of ${it.scaledGifs} gifs scaled so far were static" }
+        }
+    }
+
+    /**
+     * Streamed gifs are only downloaded, playing them prepares frames as they are shown.
+     *
+     * @return downloaded bytes
+     */
+    private suspend fun prefetchImage(key: CacheKey): Long {
+        if (memoryCache.peek(key) != null) return 0
+        if (cache.getSourceHash(key) != null && isScaledFromCurrentSource(key)) return 0
+
+        val downloaded = networkImageLoader.getCachedContentHash(key.url) == null
+        val image = when (val result = networkImageLoader.getImage(key.url, ImagePriority.PREFETCH)) {
+            is Result.Error -> throw result.exception
+            is Result.Success -> result.data
+        }
+        if (isStreamedGif(image)) cache.putStreamed(key, ScaledImagesDiskCache.sourceHash(image.data))
+        else scalingRequests.run(key) { memoryCache.peek(key) ?: scaleImage(key, image) }
+        return if (downloaded) image.data.size.toLong() else 0
+    }
+
+    private fun isStreamedGif(image: DownloadedImage): Boolean {
+        if (image.mediaType != ContentDetector.GIF) return false
+        val header = image.gifHeader ?: GifHeaderParser().setData(image.data).parseHeader()
+        return header.numFrames > streamingFrameThreshold
+    }
+
     @Composable
     private fun EmoteTooltip(
         emote: ChatState.Emote,
@@ -115,28 +245,22 @@ class DesktopImageLoader(
 
     @Composable
     private fun animateImage(
-        frames: List<ImageBitmapFrame>
-    ): ImageBitmap {
-        val transition = rememberInfiniteTransition()
-        val frameIndex by transition.animateValue(
-            initialValue = 0,
-            targetValue = frames.size - 1,
-            Int.VectorConverter,
-            animationSpec = infiniteRepeatable(
-                animation = keyframes {
-                    durationMillis = 0
-                    for ((index, frame) in frames.withIndex()) {
-                        index at durationMillis
-                        val frameDuration = if (frame.delay == 0) 100 else frame.delay
-
-                        durationMillis += frameDuration
-                    }
-                }
-            )
-        )
+        animation: AnimationFrames
+    ): Painter {
+        val frameAnimation = remember(animation) { FrameAnimation(animation.delays) }
+        LaunchedEffect(frameAnimation) { AnimationClock.run(frameAnimation) }
 
-        val currentFrame = remember(frameIndex) { frames[frameIndex] }
-        return currentFrame.bitmap
+        return remember(animation) { FrameAnimationPainter(animation, frameAnimation) }
+    }
+
+    /**
+     * Streamed frames follow [AnimationClock] like every other animation, a copy joining later starts at
+     * the frame the others are at.
+     */
+    @Composable
+    private fun streamImage(animation: StreamingGifAnimation): Painter {
+        LaunchedEffect(animation) { animation.play() }
+        return animateImage(animation)
     }
 
     @Composable
@@ -144,16 +268,17 @@ class DesktopImageLoader(
         emote: ChatState.Emote,
         image: ScaledImage,
     ) {
-        val bitmap = when (image) {
-            is AnimatedImage -> animateImage(image.frames)
-            is StaticImage -> image.bitmap
+        val painter = when (image) {
+            is AnimatedImage -> animateImage(image.animation)
+            is StreamingAnimatedImage -> streamImage(image.animation)
+
+            is StaticImage -> remember(image) { BitmapPainter(image.bitmap, filterQuality = FilterQuality.High) }
         }
 
         Image(
-            bitmap = bitmap,
+            painter = painter,
             contentDescription = emote.name,
             contentScale = ContentScale.Fit,
-            filterQuality = FilterQuality.High,
             modifier = Modifier.fillMaxSize()
         )
     }
@@ -163,45 +288,69 @@ class DesktopImageLoader(
         dimensions: EmoteDimensions,
         maxHeight: Int?,
         maxWidth: Int?,
+        priority: ImagePriority,
     ): LoadState<ScaledImage> {
-        val cached = withContext(Dispatchers.IO) {
-            loadFromCache(emote, dimensions, maxHeight, maxWidth)
-        }
-        if (cached != null) {
-            logger.debug { "loading scaled image from disk cache ${emote.url}" }
-            return LoadState.Success(cached)
+        val key = CacheKey(emote.url, scaleMaxWidth = maxWidth, scaleMaxHeight = maxHeight)
+        return try {
+            val image = loadScaledImage(key, priority)
+            dimensions.width = image.width
+            dimensions.height = image.height
+            LoadState.Success(image)
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            dimensions.height = 60
+            dimensions.width = 60
+            LoadState.Error(e)
         }
+    }
 
+    /**
+     * Concurrent loads of the same emote and size share disk cache reads and scaling. The download waits
+     * in the caller so that it's dropped from the download queue when the caller leaves composition.
+     */
+    private suspend fun loadScaledImage(key: CacheKey, priority: ImagePriority): ScaledImage {
+        // another load may have put the image in memory since this one missed it
+        val cached = cachedLoads.run(key) { memoryCache.peek(key) ?: loadCachedScaledImage(key) }
+        if (cached != null) return cached
+
+        val image = when (val result = networkImageLoader.getImage(key.url, priority)) {
+            is Result.Error -> throw result.exception
+            is Result.Success -> result.data
+        }
+        // the scaling may have been started by a prefetch that doesn't keep its result in memory
+        return scalingRequests.run(key) { memoryCache.peek(key) ?: scaleImage(key, image) }
+            .also { memoryCache.put(key, it) }
+    }
 
-        return when (val image = networkImageLoader.getImage(emote.url)) {
-            is Result.Error -> {
-                dimensions.height = 60
-                dimensions.width = 60
-                LoadState.Error(image.exception)
-            }
+    private fun loadCachedScaledImage(key: CacheKey): ScaledImage? {
+        // streamed gifs are played from their source
+        if (!isScaledFromCurrentSource(key) || cache.isStreamed(key)) return null
+        val cached = loadFromCache(key) ?: return null
+        networkImageLoader.revalidate(key.url)
+        memoryCache.put(key, cached)
+        return cached
+    }
 
-            is Result.Success -> {
-                return try {
-                    LoadState.Success(processImage(emote.url, image.data, dimensions, maxHeight, maxWidth))
-                } catch (e: Exception) {
-                    LoadState.Error(e)
-                }
-            }
-        }
+    private fun scaleImage(key: CacheKey, image: DownloadedImage): ScaledImage {
+        // other urls may serve the same image, reuse their scaled rendition
+        val sourceHash = ScaledImagesDiskCache.sourceHash(image.data)
+        val linked = if (cache.linkToSource(key, sourceHash)) loadFromCache(key) else null
+        return linked ?: processImage(key, image.data, image.mediaType, image.gifHeader, sourceHash)
     }
 
-    private fun loadFromCache(
-        emote: ChatState.Emote,
-        dimensions: EmoteDimensions,
-        maxHeight: Int?,
-        maxWidth: Int?,
-    ): ScaledImage? {
-        val key = CacheKey(emote.url, maxHeight, maxWidth)
-        val cachedStatic = cache.getScaledImage(key)?.also {
-            dimensions.height = it.height
-            dimensions.width = it.width
-        }
+    /**
+     * Scaled renditions of an image that changed on revalidation are outdated, they are replaced once
+     * the new image is scaled. Renditions whose source was evicted from disk cache are still used.
+     */
+    private fun isScaledFromCurrentSource(key: CacheKey): Boolean {
+        val currentHash = networkImageLoader.getCachedContentHash(key.url) ?: return true
+        return cache.getSourceHash(key).let { it == null || it == currentHash }
+    }
 
+    private fun loadFromCache(key: CacheKey): ScaledImage? {
+        val start = System.nanoTime()
+        val cachedStatic = cache.getScaledImage(key)
         if (cachedStatic != null) {
             val bitmap = createBitmap(
                 cachedStatic.pixels,
@@ -209,29 +358,44 @@ class DesktopImageLoader(
                 cachedStatic.height
             )
 
+            logDiskCacheLoad(key, start, cachedStatic.pixels)
             return StaticImage(bitmap.asComposeImageBitmap())
         }
 
-        val cachedFrames = cache.getScaledImageFrames(key)?.also {
-            dimensions.height = it.height
-            dimensions.width = it.width
-        }
-
+        val cachedFrames = cache.getScaledImageFrames(key)
         if (cachedFrames != null) {
-            val frames = cachedFrames.frames
-                .map {
-                    ImageBitmapFrame(
-                        bitmap = createBitmap(it.pixels, it.width, it.height).asComposeImageBitmap(),
-                        delay = it.delay
-                    )
-                }
+            val frames = cachedFrames.frames.map {
+                IndexedFrame(
+                    palette = it.palette,
+                    indices = it.indices,
+                    width = it.width,
+                    height = it.height,
+                    delay = it.delay,
+                    x = it.x,
+                    y = it.y
+                )
+            }
 
-            return AnimatedImage(frames = frames)
+            logDiskCacheLoad(key, start, *cachedFrames.frames.flatMap { listOf(it.palette, it.indices) }.toTypedArray())
+            return AnimatedImage(IndexedAnimation(frames, width = cachedFrames.width, height = cachedFrames.height))
         }
 
         return null
     }
 
+    private fun logDiskCacheLoad(key: CacheKey, start: Long, vararg pixels: ByteBuffer) {
+        val loadTime = System.nanoTime() - start
+        val bytes = pixels.sumOf { it.remaining().toLong() }
+        val totalTime = diskCacheLoadNanos.addAndGet(loadTime)
+        val totalBytes = if (pixels.firstOrNull()?.isDirect == true) mappedBytes.addAndGet(bytes) else mappedBytes.get()
+
+        logger.debug {
+            "loaded scaled image ${key.url} from disk cache in ${loadTime / 1000}µs, $bytes bytes; " +
+                    "total ${totalTime / 1_000_000}ms spent loading from disk cache, " +
+                    "${totalBytes / 1024}KiB mapped without heap copies"
+        }
+    }
+
     private fun createBitmap(pixels: ByteArray, width: Int, height: Int): Bitmap {
         val colorInfo = ColorInfo(
             BGRA_8888,
@@ -244,76 +408,155 @@ class DesktopImageLoader(
         return bitmap
     }
 
+    /**
+     * Direct buffers are copied straight into Skia owned memory without a heap copy. Bitmaps are not backed
+     * by the buffer itself, images drawn from them can outlive any reference kept to a memory mapping.
+     */
+    private fun createBitmap(pixels: ByteBuffer, width: Int, height: Int): Bitmap {
+        if (pixels.isDirect) {
+            val imageInfo = ImageInfo(ColorInfo(BGRA_8888, UNPREMUL, sRGB), width, height)
+            val bitmap = Bitmap().apply { allocPixels(imageInfo) }
+            try {
+                Pixmap.make(imageInfo, BufferUtil.getPointerFromByteBuffer(pixels), width * 4).use { source ->
+                    val target = bitmap.peekPixels() ?: throw IllegalStateException("Bitmap pixels are not accessible")
+                    if (!source.readPixels(target)) throw IllegalStateException("Failed to copy cached pixels")
+                }
+            } finally {
+                // the mapping must not be released while Skia reads from it
+                Reference.reachabilityFence(pixels)
+            }
+            return bitmap.apply { setImmutable() }
+        }
+
+        val array =
+            if (pixels.hasArray() && pixels.arrayOffset() == 0 && pixels.remaining() == pixels.array().size)
+                pixels.array()
+            else ByteArray(pixels.remaining()).also { pixels.duplicate().get(it) }
+        return createBitmap(array, width, height)
+    }
+
+    /**
+     * @param mediaType type of [image] detected when it was downloaded
+     * @param gifHeader header of a gif parsed while it was downloaded, parsed here when null
+     */
     private fun processImage(
-        emoteUrl: String,
+        key: CacheKey,
         image: ByteArray,
-        dimensions: EmoteDimensions,
-        maxHeight: Int?,
-        maxWidth: Int?,
+        mediaType: String,
+        gifHeader: GifHeader?,
+        sourceHash: String
     ): ScaledImage {
-        return when (ContentDetector.getMediaType(image)) {
-            "image/gif" -> scaleGifImage(emoteUrl, dimensions, image, maxHeight, maxWidth)
-            else -> scaleStaticImage(emoteUrl, dimensions, image, maxHeight, maxWidth)
+        return when (mediaType) {
+            ContentDetector.GIF -> {
+                scaledGifs.incrementAndGet()
+                val header = gifHeader ?: GifHeaderParser().setData(image).parseHeader()
+                when {
+                    header.numFrames <= 1 -> {
+                        staticGifs.incrementAndGet()
+                        scaleStaticGifImage(key, image, header, sourceHash)
+                    }
+
+                    header.numFrames > streamingFrameThreshold -> streamGifImage(key, image, header, sourceHash)
+                    else -> scaleGifImage(key, image, header, sourceHash)
+                }
+            }
+
+            else -> scaleStaticImage(key, image, mediaType, sourceHash)
         }
     }
 
-    private fun scaleStaticImage(
-        emoteUrl: String,
-        dimensions: EmoteDimensions,
-        image: ByteArray,
-        maxHeight: Int?,
-        maxWidth: Int?,
-    ): StaticImage {
-        val scaled = ImageConverter.scaleImage(image, height = maxHeight, width = maxWidth)
+    /**
+     * Nothing is scaled up front, only the link to the source is cached so that urls serving the same gif
+     * and prefetching know it's streamed without downloading it again.
+     */
+    private fun streamGifImage(key: CacheKey, image: ByteArray, header: GifHeader, sourceHash: String): StreamingAnimatedImage {
+        cache.putStreamed(key, sourceHash)
+        val animation = StreamingGifAnimation(
+            image,
+            header,
+            maxHeight = key.scaleMaxHeight,
+            maxWidth = key.scaleMaxWidth
+        )
+        return StreamingAnimatedImage(animation)
+    }
+
+    private fun scaleStaticImage(key: CacheKey, image: ByteArray, mediaType: String, sourceHash: String): StaticImage {
+        val scaled = ImageConverter.scaleImage(
+            image,
+            mediaType,
+            height = key.scaleMaxHeight,
+            width = key.scaleMaxWidth
+        )
+        return cacheStaticImage(key, scaled, sourceHash)
+    }
+
+    private fun scaleStaticGifImage(key: CacheKey, image: ByteArray, header: GifHeader, sourceHash: String): StaticImage {
+        val scaled = ImageConverter.scaleGifFirstFrame(
+            image,
+            header,
+            height = key.scaleMaxHeight,
+            width = key.scaleMaxWidth
+        )
+        return cacheStaticImage(key, scaled, sourceHash)
+    }
+
+    private fun cacheStaticImage(key: CacheKey, scaled: BufferedImage, sourceHash: String): StaticImage {
         val pixels = scaled.toBgra8888()
 
         cache.putScaledImage(
-            CacheKey(emoteUrl, scaleMaxWidth = maxWidth, scaleMaxHeight = maxHeight),
-            CacheImage(pixels, width = scaled.width, height = scaled.height)
+            key,
+            CacheImage(ByteBuffer.wrap(pixels), width = scaled.width, height = scaled.height),
+            sourceHash
         )
-        dimensions.width = scaled.width
-        dimensions.height = scaled.height
         return StaticImage(createBitmap(pixels, scaled.width, scaled.height).asComposeImageBitmap())
     }
 
-    private fun scaleGifImage(
-        emoteUrl: String,
-        dimensions: EmoteDimensions,
-        image: ByteArray,
-        maxHeight: Int?,
-        maxWidth: Int?,
-    ): AnimatedImage {
-        val scaled = ImageConverter.scaleGif(image, height = maxHeight, width = maxWidth)
-        val cacheFrames = scaled.frames.map { frame ->
-            CacheImageFrame(
-                pixels = frame.data.toBgra8888(),
-                width = frame.data.width,
-                height = frame.data.height,
-                delay = frame.delay
-            )
+    private fun scaleGifImage(key: CacheKey, image: ByteArray, header: GifHeader, sourceHash: String): ScaledImage {
+        val scaled = ImageConverter.scaleGif(
+            image,
+            header,
+            height = key.scaleMaxHeight,
+            width = key.scaleMaxWidth,
+            minFrameInterval = minFrameInterval
+        )
+        if (scaled.mergedFrames + scaled.droppedFrames > 0) logger.debug {
+            "normalized gif ${key.url} to ${scaled.frames.size} frames, merged ${scaled.mergedFrames} identical " +
+                    "frames and dropped ${scaled.droppedFrames} frames shorter than ${minFrameInterval}ms"
         }
-
-        val bitmapFrames = cacheFrames.map {
-            ImageBitmapFrame(
-                bitmap = createBitmap(it.pixels, width = it.width, height = it.height).asComposeImageBitmap(),
-                delay = it.delay
-            )
+        if (scaled.frames.size == 1) {
+            // every frame was the same, nothing to animate
+            staticGifs.incrementAndGet()
+            return cacheStaticImage(key, scaled.frames.first().data, sourceHash)
         }
+        // resampling blends gif colors, frames are quantized back to a palette
+        val animation = PaletteQuantizer.quantizeAnimation(
+            frames = scaled.frames.map { it.data.getRGB(0, 0, scaled.width, scaled.height, null, 0, scaled.width) },
+            delays = scaled.frames.map { it.delay },
+            width = scaled.width,
+            height = scaled.height
+        )
 
         cache.putScaledImageFrames(
-            CacheKey(emoteUrl, scaleMaxWidth = maxWidth, scaleMaxHeight = maxHeight),
+            key,
             CacheImageFrames(
-                frames = cacheFrames,
+                frames = animation.frames.map {
+                    CacheImageFrame(
+                        palette = it.palette,
+                        indices = it.indices,
+                        x = it.x,
+                        y = it.y,
+                        width = it.width,
+                        height = it.height,
+                        delay = it.delay
+                    )
+                },
                 width = scaled.width,
                 height = scaled.height
-            )
-
+            ),
+            sourceHash
         )
 
-        dimensions.width = scaled.width
-        dimensions.height = scaled.height
-
-        return AnimatedImage(frames = bitmapFrames)
+        return AnimatedImage(animation)
     }
 
     private fun argbToBgraArray(rgbArray: IntArray): ByteArray {
@@ -337,20 +580,43 @@ class DesktopImageLoader(
 
     private fun BufferedImage.toBgra8888() =
         argbToBgraArray(getRGB(0, 0, width, height, null, 0, width))
+
+    /**
+     * @param scaledGifs gifs decoded and scaled, including streamed ones
+     * @param staticGifs scaled gifs with a single frame, or frames that were all the same, stored as static images
+     */
+    data class GifStats(
+        val scaledGifs: Long,
+        val staticGifs: Long,
+    )
 }
 
 sealed class ScaledImage {
+    abstract val width: Int
+    abstract val height: Int
+
+    /**
+     * Frames of [animation] may be slices of memory mapped cache files.
+     */
     class AnimatedImage(
-        val frames: List<ImageBitmapFrame>,
-    ) : ScaledImage()
+        val animation: IndexedAnimation,
+    ) : ScaledImage() {
+        override val width get() = animation.width
+        override val height get() = animation.height
+    }
+
+    class StreamingAnimatedImage(
+        val animation: StreamingGifAnimation,
+    ) : ScaledImage() {
+        override val width get() = animation.width
+        override val height get() = animation.height
+    }
 
     class StaticImage(
-        val bitmap: ImageBitmap
-    ) : ScaledImage()
+        val bitmap: ImageBitmap,
+    ) : ScaledImage() {
+        override val width get() = bitmap.width
+        override val height get() = bitmap.height
+    }
 }
 
-
-class ImageBitmapFrame(
-    val bitmap: ImageBitmap,
-    val delay: Int,
-)
\ No newline at end of file
@@ -3,47 +3,386 @@
 package image
 
 import dev.dirs.ProjectDirectories
+import mu.KotlinLogging
+import java.io.*
 import java.net.URI
 import java.nio.file.Files
 import java.nio.file.Path
-import java.util.concurrent.ConcurrentHashMap
-import kotlin.io.path.isDirectory
-import kotlin.io.path.name
-import kotlin.io.path.notExists
+import java.nio.file.StandardCopyOption.ATOMIC_MOVE
+import java.nio.file.StandardCopyOption.REPLACE_EXISTING
+import java.nio.file.StandardOpenOption.APPEND
+import java.nio.file.StandardOpenOption.CREATE
+import java.time.Duration
+import kotlin.io.path.*
+import kotlin.streams.toList
 
-class DiskCache {
-    private val cache = ConcurrentHashMap<String, Path>()
+private val logger = KotlinLogging.logger {}
+
+private const val JOURNAL_FILE = "images.journal"
+private const val JOURNAL_MAGIC = 0x5054494A // PTIJ
+private const val JOURNAL_VERSION = 4
+
+/**
+ * Oldest journal version that can still be read, entries of version 2 have no http metadata
+ * and entries before version 4 no media type.
+ */
+private const val MIN_JOURNAL_VERSION = 2
+
+private const val RECORD_ADD = 0
+private const val RECORD_ACCESS = 1
+private const val RECORD_REMOVE = 2
+
+/**
+ * Journal is rewritten once it holds this many more records than there are entries.
+ */
+private const val JOURNAL_COMPACTION_THRESHOLD = 2000
+
+/**
+ * Images cached per url before blobs existed, named by url host followed by the path with / replaced by _,
+ * see [DiskCache.getCacheKey].
+ */
+private val LEGACY_ENTRY_NAME = Regex("""([a-z0-9-]+\.)+[a-z0-9-]+(_[^/]*)+""", RegexOption.IGNORE_CASE)
+
+/**
+ * Disk cache of downloaded images.
+ *
+ * Images are stored once per content hash in the blobs directory, urls serving identical images share a blob.
+ * Entries are evicted least recently used first once the cache grows past [maxSize] and when they haven't
+ * been accessed for [maxAge], a blob is deleted with the last entry referencing it.
+ * The index is kept in an append-only journal instead of listing the cache directory.
+ *
+ * Every entry carries the http validators and freshness of its response, see [Metadata], and the media type
+ * detected on download.
+ */
+class DiskCache(
+    private val maxSize: Long = 512L * 1024 * 1024,
+    private val maxAge: Duration = Duration.ofDays(30),
+) {
+    private val entries = LinkedHashMap<String, Entry>(16, 0.75f, true)
+    private val blobReferences = HashMap<String, Int>()
+    private var size = 0L
+
+    private var hits = 0L
+    private var misses = 0L
+    private var evictions = 0L
+
+    private var journal: DataOutputStream? = null
+    private var journalRecords = 0
 
     private val cacheDirectory = Path.of(
         ProjectDirectories.from(
             "org", "snd", "PotatoTube"
         ).cacheDir
     )
+    private val blobsDirectory = cacheDirectory.resolve("blobs/")
+    private val journalPath = cacheDirectory.resolve(JOURNAL_FILE)
 
-    fun getImage(url: String): ByteArray? {
-        val cached = cache[getCacheKey(url)] ?: return null
-        return Files.readAllBytes(cached)
+    fun getImage(url: String): DownloadedImage? {
+        val cacheKey = getCacheKey(url)
+        val cached = synchronized(this) {
+            val entry = entries[cacheKey]
+            if (entry == null) {
+                misses++
+                return null
+            }
+            hits++
+            entry.lastAccess = System.currentTimeMillis()
+            writeRecord { writeAccess(cacheKey, entry) }
+            entry
+        }
+
+        return try {
+            val image = Files.readAllBytes(blobsDirectory.resolve(cached.hash))
+            // entries of older journals were cached without media type
+            DownloadedImage(image, cached.mediaType ?: ContentDetector.getMediaType(image))
+        } catch (e: IOException) {
+            logger.warn { "cached image $url is missing, dropping cache entry" }
+            synchronized(this) { removeEntry(cacheKey) }
+            null
+        }
     }
 
-    fun addImage(url: String, image: ByteArray) {
+    fun addImage(url: String, image: DownloadedImage, metadata: Metadata = Metadata()) {
         val cacheKey = getCacheKey(url)
-        val filePath = cacheDirectory.resolve(cacheKey)
-        if (filePath.notExists())
-            Files.createFile(filePath)
+        val hash = ScaledImagesDiskCache.sourceHash(image.data)
+
+        synchronized(this) {
+            if (hash !in blobReferences) {
+                val blobPath = blobsDirectory.resolve(hash)
+                val tmpPath = blobsDirectory.resolve("$hash.tmp")
+                Files.write(tmpPath, image.data)
+                Files.move(tmpPath, blobPath, REPLACE_EXISTING, ATOMIC_MOVE)
+            }
+
+            val entry = Entry(hash, image.data.size.toLong(), System.currentTimeMillis(), metadata, image.mediaType)
+            addReference(entry)
+            entries.put(cacheKey, entry)?.let { removeReference(it) }
+            writeRecord { writeAdd(cacheKey, entry) }
+            trim()
+        }
+    }
+
+    @Synchronized
+    fun getMetadata(url: String): Metadata? = entries[getCacheKey(url)]?.metadata
 
-        Files.write(filePath, image)
-        cache[cacheKey] = filePath
+    /**
+     * Hash of the cached content of [url], the same hash [ScaledImagesDiskCache] records as source hash.
+     */
+    @Synchronized
+    fun getContentHash(url: String): String? = entries[getCacheKey(url)]?.hash
+
+    /**
+     * Records a successful revalidation, the cached content stays as is.
+     */
+    @Synchronized
+    fun updateMetadata(url: String, metadata: Metadata) {
+        val cacheKey = getCacheKey(url)
+        val entry = entries[cacheKey] ?: return
+        entry.metadata = metadata
+        writeRecord { writeAdd(cacheKey, entry) }
     }
 
+    @Synchronized
+    fun stats() = Stats(
+        hits = hits,
+        misses = misses,
+        evictions = evictions,
+        entries = entries.size,
+        blobs = blobReferences.size,
+        sizeBytes = size,
+        maxSizeBytes = maxSize
+    )
+
+    @Synchronized
     fun initialize() {
-        Files.createDirectories(cacheDirectory)
-        Files.list(cacheDirectory)
-            .filter { !it.isDirectory() }
-            .forEach { cache[it.name] = it }
+        Files.createDirectories(blobsDirectory)
+        try {
+            if (journalPath.exists()) readJournal()
+        } catch (e: IOException) {
+            // blobs are named by content hash, entries can't be recovered without the urls they were cached for
+            logger.warn(e) { "image cache journal is unreadable, clearing image cache" }
+            entries.clear()
+            blobReferences.clear()
+            size = 0
+        }
+        migrateCacheDirectory()
+        removeUnreferencedBlobs()
+
+        trim()
+        compactJournal()
+        logger.info {
+            "loaded ${entries.size} images stored in ${blobReferences.size} blobs, ${size / 1024}KiB from disk cache"
+        }
+    }
+
+    private fun readJournal() {
+        val loaded = HashMap<String, Entry>()
+        DataInputStream(BufferedInputStream(Files.newInputStream(journalPath))).use { input ->
+            if (input.readInt() != JOURNAL_MAGIC) throw IOException("Unsupported image cache journal format")
+            val version = input.readInt()
+            if (version !in MIN_JOURNAL_VERSION..JOURNAL_VERSION)
+                throw IOException("Unsupported image cache journal version $version")
+
+            // a truncated record at the end means the app was killed mid write
+            try {
+                while (true) {
+                    when (input.readUnsignedByte()) {
+                        RECORD_ADD -> {
+                            val key = input.readUTF()
+                            loaded[key] = Entry(
+                                hash = input.readUTF(),
+                                size = input.readLong(),
+                                lastAccess = input.readLong(),
+                                metadata = if (version >= 3) input.readMetadata() else Metadata(),
+                                mediaType = if (version >= 4) input.readNullableUTF() else null
+                            )
+                        }
+
+                        RECORD_ACCESS -> {
+                            val key = input.readUTF()
+                            val lastAccess = input.readLong()
+                            loaded[key]?.lastAccess = lastAccess
+                        }
+
+                        RECORD_REMOVE -> loaded.remove(input.readUTF())
+                        else -> throw IOException("Corrupted image cache journal")
+                    }
+                }
+            } catch (e: EOFException) {
+                // end of journal
+            }
+        }
+
+        loaded.entries.sortedBy { it.value.lastAccess }.forEach { (key, entry) -> putLoaded(key, entry) }
+    }
+
+    /**
+     * Moves images cached per url before blobs existed into the blobs directory.
+     */
+    private fun migrateCacheDirectory() {
+        val legacyFiles = Files.list(cacheDirectory).use { files ->
+            files.filter { it.isRegularFile() && !it.name.endsWith(".tmp") && LEGACY_ENTRY_NAME.matches(it.name) }.toList()
+        }
+        if (legacyFiles.isEmpty()) return
+
+        legacyFiles.sortedBy { it.getLastModifiedTime() }.forEach { path ->
+            val hash = ScaledImagesDiskCache.sourceHash(Files.readAllBytes(path))
+            val entry = Entry(hash, path.fileSize(), path.getLastModifiedTime().toMillis(), Metadata(), mediaType = null)
+            Files.move(path, blobsDirectory.resolve(hash), REPLACE_EXISTING)
+            entries.remove(path.name)?.let { removeReference(it) }
+            putLoaded(path.name, entry)
+        }
+        logger.info { "moved ${legacyFiles.size} cached images to content addressed storage" }
+    }
+
+    private fun removeUnreferencedBlobs() {
+        Files.list(blobsDirectory).use { files ->
+            files.filter { it.name !in blobReferences }.forEach { Files.deleteIfExists(it) }
+        }
+    }
+
+    private fun putLoaded(key: String, entry: Entry) {
+        entries[key] = entry
+        addReference(entry)
+    }
+
+    private fun addReference(entry: Entry) {
+        val references = blobReferences.getOrDefault(entry.hash, 0)
+        if (references == 0) size += entry.size
+        blobReferences[entry.hash] = references + 1
+    }
+
+    private fun removeReference(entry: Entry) {
+        val references = blobReferences.getOrDefault(entry.hash, 0) - 1
+        if (references > 0) {
+            blobReferences[entry.hash] = references
+            return
+        }
+        blobReferences.remove(entry.hash)
+        size -= entry.size
+        Files.deleteIfExists(blobsDirectory.resolve(entry.hash))
+    }
+
+    private fun trim() {
+        val expiredBefore = System.currentTimeMillis() - maxAge.toMillis()
+        val iterator = entries.entries.iterator()
+        while (iterator.hasNext()) {
+            val (key, eldest) = iterator.next()
+            if (size <= maxSize && eldest.lastAccess >= expiredBefore) break
+
+            iterator.remove()
+            removeReference(eldest)
+            evictions++
+            writeRecord { writeRemove(key) }
+        }
+    }
+
+    private fun removeEntry(key: String) {
+        entries.remove(key)?.let {
+            removeReference(it)
+            writeRecord { writeRemove(key) }
+        }
+    }
+
+    private fun compactJournal() {
+        journal?.close()
+        val tmpPath = journalPath.resolveSibling("$JOURNAL_FILE.tmp")
+        DataOutputStream(BufferedOutputStream(Files.newOutputStream(tmpPath))).use { output ->
+            output.writeInt(JOURNAL_MAGIC)
+            output.writeInt(JOURNAL_VERSION)
+            entries.forEach { (key, entry) -> output.writeAdd(key, entry) }
+        }
+        Files.move(tmpPath, journalPath, REPLACE_EXISTING, ATOMIC_MOVE)
+
+        journalRecords = entries.size
+        journal = DataOutputStream(BufferedOutputStream(Files.newOutputStream(journalPath, CREATE, APPEND)))
+    }
+
+    private fun writeRecord(write: DataOutputStream.() -> Unit) {
+        val journal = this.journal ?: return
+        try {
+            journal.write()
+            journal.flush()
+            journalRecords++
+            if (journalRecords - entries.size > JOURNAL_COMPACTION_THRESHOLD) compactJournal()
+        } catch (e: IOException) {
+            logger.error(e) { "failed to write image cache journal" }
+        }
+    }
+
+    private fun DataOutputStream.writeAdd(key: String, entry: Entry) {
+        writeByte(RECORD_ADD)
+        writeUTF(key)
+        writeUTF(entry.hash)
+        writeLong(entry.size)
+        writeLong(entry.lastAccess)
+        writeNullableUTF(entry.metadata.etag)
+        writeNullableUTF(entry.metadata.lastModified)
+        writeLong(entry.metadata.expiresAt)
+        writeNullableUTF(entry.mediaType)
+    }
+
+    private fun DataInputStream.readMetadata() = Metadata(
+        etag = readNullableUTF(),
+        lastModified = readNullableUTF(),
+        expiresAt = readLong()
+    )
+
+    private fun DataOutputStream.writeNullableUTF(value: String?) {
+        writeBoolean(value != null)
+        if (value != null) writeUTF(value)
+    }
+
+    private fun DataInputStream.readNullableUTF(): String? = if (readBoolean()) readUTF() else null
+
+    private fun DataOutputStream.writeAccess(key: String, entry: Entry) {
+        writeByte(RECORD_ACCESS)
+        writeUTF(key)
+        writeLong(entry.lastAccess)
+    }
+
+    private fun DataOutputStream.writeRemove(key: String) {
+        writeByte(RECORD_REMOVE)
+        writeUTF(key)
     }
 
     private fun getCacheKey(url: String): String {
         val uri = URI.create(url)
         return "${uri.host}${uri.path.split("/").joinToString("_")}"
     }
-}
\ No newline at end of file
+
+    private class Entry(
+        val hash: String,
+        val size: Long,
+        var lastAccess: Long,
+        var metadata: Metadata,
+        val mediaType: String?,
+    )
+
+    /**
+     * @param etag ETag response header, sent back as If-None-Match
+     * @param lastModified Last-Modified response header, sent back as If-Modified-Since
+     * @param expiresAt epoch millis after which the image should be revalidated, 0 when it is unknown
+     */
+    data class Metadata(
+        val etag: String? = null,
+        val lastModified: String? = null,
+        val expiresAt: Long = 0,
+    ) {
+        val isStale: Boolean
+            get() = System.currentTimeMillis() >= expiresAt
+    }
+
+    data class Stats(
+        val hits: Long,
+        val misses: Long,
+        val evictions: Long,
+        val entries: Int,
+        val blobs: Int,
+        val sizeBytes: Long,
+        val maxSizeBytes: Long,
+    ) {
+        val hitRate: Double
+            get() = if (hits + misses == 0L) 0.0 else hits.toDouble() / (hits + misses)
+    }
+}
@@ -0,0 +1,112 @@
+package image
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.launch
+import java.net.URI
+import java.util.*
+
+/**
+ * Runs image downloads with a bounded number of concurrent requests overall and per host.
+ *
+ * Queued downloads start in [ImagePriority] order, then in order of arrival. Concurrent requests for the same url
+ * join a single download which is promoted to the highest priority asked for. A download that is still queued
+ * when every requester has left, e.g. its composable scrolled away, is dropped without ever being sent.
+ * Started downloads run in [scope] and complete for the cache even if nobody waits for them anymore.
+ */
+class DownloadScheduler(
+    private val scope: CoroutineScope,
+    private val maxConcurrent: Int = 8,
+    private val maxPerHost: Int = 4,
+) {
+    private val tasks = HashMap<String, Task>()
+    private val queue = TreeSet(compareBy<Task>({ it.priority }, { it.sequence }))
+    private val activePerHost = HashMap<String, Int>()
+    private var active = 0
+    private var sequence = 0L
+
+    suspend fun download(url: String, priority: ImagePriority, block: suspend () -> DownloadedImage): DownloadedImage {
+        val task = synchronized(this) {
+            val task = tasks.getOrPut(url) {
+                Task(url, URI.create(url).host ?: "", priority, sequence++, block).also { queue.add(it) }
+            }
+            task.waiters++
+            if (!task.started && priority < task.priority) {
+                queue.remove(task)
+                task.priority = priority
+                queue.add(task)
+            }
+            dispatch()
+            task
+        }
+
+        try {
+            return task.result.await()
+        } catch (e: CancellationException) {
+            synchronized(this) { leave(task) }
+            throw e
+        }
+    }
+
+    @Synchronized
+    fun stats() = Stats(active = active, queued = queue.size)
+
+    private fun leave(task: Task) {
+        task.waiters--
+        if (task.waiters > 0 || task.started) return
+
+        queue.remove(task)
+        tasks.remove(task.url, task)
+        task.result.cancel()
+    }
+
+    private fun dispatch() {
+        val iterator = queue.iterator()
+        while (active < maxConcurrent && iterator.hasNext()) {
+            val task = iterator.next()
+            if (activePerHost.getOrDefault(task.host, 0) >= maxPerHost) continue
+
+            iterator.remove()
+            start(task)
+        }
+    }
+
+    private fun start(task: Task) {
+        task.started = true
+        active++
+        activePerHost.merge(task.host, 1, Int::plus)
+
+        scope.launch {
+            try {
+                task.result.complete(task.block())
+            } catch (e: Throwable) {
+                task.result.completeExceptionally(e)
+            } finally {
+                synchronized(this@DownloadScheduler) {
+                    active--
+                    activePerHost.computeIfPresent(task.host) { _, count -> (count - 1).takeIf { it > 0 } }
+                    tasks.remove(task.url, task)
+                    dispatch()
+                }
+            }
+        }
+    }
+
+    private class Task(
+        val url: String,
+        val host: String,
+        var priority: ImagePriority,
+        val sequence: Long,
+        val block: suspend () -> DownloadedImage,
+    ) {
+        val result = CompletableDeferred<DownloadedImage>()
+        var waiters = 0
+        var started = false
+    }
+
+    data class Stats(
+        val active: Int,
+        val queued: Int,
+    )
+}
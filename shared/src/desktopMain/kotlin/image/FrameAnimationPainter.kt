@@ -0,0 +1,44 @@
+package image
+
+import androidx.compose.ui.geometry.Size
+import androidx.compose.ui.graphics.FilterQuality
+import androidx.compose.ui.graphics.ImageBitmap
+import androidx.compose.ui.graphics.drawscope.DrawScope
+import androidx.compose.ui.graphics.painter.Painter
+import androidx.compose.ui.unit.IntSize
+import kotlin.math.roundToInt
+
+/**
+ * Frames of an animation drawn by [FrameAnimationPainter].
+ */
+interface AnimationFrames {
+    val width: Int
+    val height: Int
+    val delays: List<Int>
+
+    /**
+     * Must only be called from the UI thread.
+     */
+    fun bitmap(frameIndex: Int): ImageBitmap
+}
+
+/**
+ * Draws the current frame of [frameAnimation].
+ *
+ * Frame index is only read while drawing, frame changes invalidate the draw phase without
+ * recomposing the emote.
+ */
+class FrameAnimationPainter(
+    private val animation: AnimationFrames,
+    private val frameAnimation: FrameAnimation,
+) : Painter() {
+    override val intrinsicSize: Size = Size(animation.width.toFloat(), animation.height.toFloat())
+
+    override fun DrawScope.onDraw() {
+        drawImage(
+            animation.bitmap(frameAnimation.frameIndex),
+            dstSize = IntSize(size.width.roundToInt(), size.height.roundToInt()),
+            filterQuality = FilterQuality.High
+        )
+    }
+}
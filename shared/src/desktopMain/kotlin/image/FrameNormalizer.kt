@@ -0,0 +1,68 @@
+package image
+
+/**
+ * Removes gif frames that would never be seen before they are scaled and cached.
+ *
+ * Consecutive identical frames are merged into one shown for their summed delay. A frame shown for less than
+ * [minFrameInterval] is dropped and its time goes to the next frame, it would rarely make it to a screen
+ * refreshing at that interval. The last frame is always kept.
+ *
+ * Frames are added in order as they are decoded, each kept frame is returned once the next one shows that
+ * it is final. Delays of returned frames are [displayDelay]s.
+ *
+ * @param minFrameInterval display interval in milliseconds, e.g. 16 for 60 Hz, 0 keeps every changed frame
+ */
+internal class FrameNormalizer(private val minFrameInterval: Int) {
+    private var pending: IntArray? = null
+    private var pendingDelay = 0
+
+    var mergedFrames = 0
+        private set
+    var droppedFrames = 0
+        private set
+
+    /**
+     * @param frame canvas of the frame, it's copied when kept
+     * @return the previous kept frame once it's final
+     */
+    fun add(frame: IntArray, delay: Int): NormalizedFrame? {
+        val previous = pending
+        if (previous == null) {
+            pending = frame.copyOf()
+            pendingDelay = displayDelay(delay)
+            return null
+        }
+
+        if (previous.contentEquals(frame)) {
+            pendingDelay += displayDelay(delay)
+            mergedFrames++
+            return null
+        }
+        if (pendingDelay < minFrameInterval) {
+            // the previous frame was never returned, its canvas can be reused
+            frame.copyInto(previous)
+            pendingDelay += displayDelay(delay)
+            droppedFrames++
+            return null
+        }
+
+        val finished = NormalizedFrame(previous, pendingDelay)
+        pending = frame.copyOf()
+        pendingDelay = displayDelay(delay)
+        return finished
+    }
+
+    /**
+     * @return the last frame, null if no frame was added
+     */
+    fun finish(): NormalizedFrame? {
+        val last = pending?.let { NormalizedFrame(it, pendingDelay) }
+        pending = null
+        return last
+    }
+
+    class NormalizedFrame(
+        val pixels: IntArray,
+        val delay: Int,
+    )
+}
@@ -1,63 +1,219 @@
 package image
 
 import com.twelvemonkeys.image.ResampleOp
+import image.FrameNormalizer.NormalizedFrame
 import image.ScaledBufferedImageFrames.ScaledBufferedImageFrame
+import org.snd.gifdecoder.GifDecoder
+import org.snd.gifdecoder.GifDecoderPool
+import org.snd.gifdecoder.GifHeader
+import org.snd.gifdecoder.GifHeaderParser
+import org.snd.gifdecoder.PixelFormat
 import org.snd.gifdecoder.StandardGifDecoder
 import java.awt.image.BufferedImage
+import java.awt.image.DataBufferInt
+import java.nio.ByteBuffer
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
 import javax.imageio.ImageIO
 
+/**
+ * Gif frames resampled at once, shared by all gifs being scaled.
+ */
+private val resamplePool = ForkJoinPool((Runtime.getRuntime().availableProcessors() - 1).coerceIn(1, 4))
+
+/**
+ * Decoded gif frames that may wait for the resampler.
+ */
+private const val MAX_PENDING_FRAMES = 16
+
+/**
+ * Gif decoders shared by scaling and playback, their buffers are kept for the next gif unless they
+ * grew larger than 16 MiB for a single oversized one.
+ */
+internal val gifDecoders = GifDecoderPool(Runtime.getRuntime().availableProcessors() * 2, 16 * 1024 * 1024)
+
 object ImageConverter {
 
+    /**
+     * @param mediaType type of [encodedImage] as detected by [ContentDetector]
+     */
     fun scaleImage(
         encodedImage: ByteArray,
+        mediaType: String,
         height: Int?,
         width: Int?,
     ): BufferedImage {
         if (height == null && width == null) throw IllegalStateException("scale height and width cannot be null")
 
-        val mediaType = ContentDetector.getMediaType(encodedImage)
         if (!ContentDetector.isSupportedMediaType(mediaType))
             throw IllegalStateException("Unsupported image format $mediaType")
 
         return scaleBufferedImage(ImageIO.read(encodedImage.inputStream()), height, width)
     }
 
-    fun scaleGif(image: ByteArray, height: Int?, width: Int?): ScaledBufferedImageFrames {
-        val frames = ArrayList<ScaledBufferedImageFrame>()
-        val gifDecoder = StandardGifDecoder()
-        gifDecoder.read(image)
+    /**
+     * Frames are decoded in order on the calling thread, normalized by [FrameNormalizer] and resampled in
+     * parallel on [resamplePool] with weights shared by all frames.
+     *
+     * @param decodeSampling let the decoder subsample gifs much larger than the target, see [gifSampleSize]
+     * @param minFrameInterval frames shown for less than this many milliseconds are dropped
+     */
+    fun scaleGif(
+        image: ByteArray,
+        height: Int?,
+        width: Int?,
+        decodeSampling: Boolean = true,
+        minFrameInterval: Int = 0,
+    ): ScaledBufferedImageFrames {
+        val header = GifHeaderParser().setData(image).parseHeader()
+        return scaleGif(image, header, height, width, decodeSampling, minFrameInterval)
+    }
+
+    /**
+     * @param header parsed header of [image]
+     */
+    fun scaleGif(
+        image: ByteArray,
+        header: GifHeader,
+        height: Int?,
+        width: Int?,
+        decodeSampling: Boolean = true,
+        minFrameInterval: Int = 0,
+    ): ScaledBufferedImageFrames {
+        val scaledDimensions = getScaleDimensions(header.height, header.width, height, width)
+        val sampleSize =
+            if (decodeSampling) gifSampleSize(header.width, header.height, scaledDimensions.width, scaledDimensions.height)
+            else 1
+        val gifDecoder = gifDecoders.obtain(header, ByteBuffer.wrap(image), sampleSize)
+        try {
+            return scaleGifFrames(gifDecoder, header, sampleSize, scaledDimensions, FrameNormalizer(minFrameInterval))
+        } finally {
+            gifDecoders.release(gifDecoder)
+        }
+    }
+
+    /**
+     * Scales the first frame of a gif that is shown as a static image. The frame is composed on the logical
+     * screen like in animations, tolerating truncated data.
+     *
+     * @param header parsed header of [image]
+     */
+    fun scaleGifFirstFrame(
+        image: ByteArray,
+        header: GifHeader,
+        height: Int?,
+        width: Int?,
+    ): BufferedImage {
+        if (header.numFrames < 1) throw IllegalStateException("Gif has no frames")
+
+        val scaledDimensions = getScaleDimensions(header.height, header.width, height, width)
+        val sampleSize = gifSampleSize(header.width, header.height, scaledDimensions.width, scaledDimensions.height)
+        val gifDecoder = gifDecoders.obtain(header, ByteBuffer.wrap(image), sampleSize)
+        try {
+            val canvas = IntArray((header.width / sampleSize) * (header.height / sampleSize))
+            gifDecoder.advance()
+            val status = gifDecoder.decodeNextFrameInto(canvas, PixelFormat.ARGB_8888)
+            if (status == GifDecoder.STATUS_FORMAT_ERROR || status == GifDecoder.STATUS_OPEN_ERROR)
+                throw IllegalStateException("Failed to decode gif frame 0")
+
+            val resampler = LanczosResampler(
+                srcWidth = header.width / sampleSize,
+                srcHeight = header.height / sampleSize,
+                dstWidth = scaledDimensions.width,
+                dstHeight = scaledDimensions.height
+            )
+            return resample(resampler, canvas)
+        } finally {
+            gifDecoders.release(gifDecoder)
+        }
+    }
+
+    private fun scaleGifFrames(
+        gifDecoder: StandardGifDecoder,
+        header: GifHeader,
+        sampleSize: Int,
+        scaledDimensions: ImageDimensions,
+        normalizer: FrameNormalizer,
+    ): ScaledBufferedImageFrames {
+        val resampler = LanczosResampler(
+            srcWidth = header.width / sampleSize,
+            srcHeight = header.height / sampleSize,
+            dstWidth = scaledDimensions.width,
+            dstHeight = scaledDimensions.height
+        )
+        val canvas = IntArray((header.width / sampleSize) * (header.height / sampleSize))
+        // reused by every frame a resampling thread takes
+        val buffers = ThreadLocal.withInitial { resampler.Buffers() }
+
+        val delays = ArrayList<Int>(gifDecoder.frameCount)
+        val resampling = ArrayList<ForkJoinTask<BufferedImage>>(gifDecoder.frameCount)
+        val frames = ArrayList<ScaledBufferedImageFrame>(gifDecoder.frameCount)
+
+        fun submit(frame: NormalizedFrame) {
+            // bounds the decoded frames held in memory while waiting for the resampler
+            if (resampling.size - frames.size >= MAX_PENDING_FRAMES) frames.add(awaitFrame(resampling, delays, frames.size))
+
+            resampling.add(resamplePool.submit(Callable { resample(resampler, frame.pixels, buffers.get()) }))
+            delays.add(frame.delay)
+        }
+
         gifDecoder.advance()
         for (i in 0..<gifDecoder.frameCount) {
-            val currentFrame = gifDecoder.nextFrame
-            val resampled = scaleBufferedImage(currentFrame, height, width)
-            val currentFrameIndex = gifDecoder.currentFrameIndex
-            val delay = gifDecoder.getDelay(currentFrameIndex)
-
-            frames.add(
-                ScaledBufferedImageFrame(
-                    data = resampled,
-                    delay = delay
-                )
-            )
+            val status = gifDecoder.decodeNextFrameInto(canvas, PixelFormat.ARGB_8888)
+            if (status == GifDecoder.STATUS_FORMAT_ERROR || status == GifDecoder.STATUS_OPEN_ERROR)
+                throw IllegalStateException("Failed to decode gif frame $i")
+
+            normalizer.add(canvas, gifDecoder.getDelay(gifDecoder.currentFrameIndex))?.let { submit(it) }
             gifDecoder.advance()
         }
-
-        val scaledDimensions = getScaleDimensions(gifDecoder.height, gifDecoder.width, height, width)
+        normalizer.finish()?.let { submit(it) }
+        while (frames.size < resampling.size) frames.add(awaitFrame(resampling, delays, frames.size))
 
         return ScaledBufferedImageFrames(
             frames = frames,
             width = scaledDimensions.width,
-            height = scaledDimensions.height
+            height = scaledDimensions.height,
+            mergedFrames = normalizer.mergedFrames,
+            droppedFrames = normalizer.droppedFrames
         )
     }
 
-    private fun scaleBufferedImage(image: BufferedImage, height: Int?, width: Int?): BufferedImage {
+    private fun awaitFrame(
+        resampling: List<ForkJoinTask<BufferedImage>>,
+        delays: List<Int>,
+        index: Int
+    ) = ScaledBufferedImageFrame(data = resampling[index].join(), delay = delays[index])
+
+    private fun resample(
+        resampler: LanczosResampler,
+        frame: IntArray,
+        buffers: LanczosResampler.Buffers = resampler.Buffers()
+    ): BufferedImage {
+        val resampled = BufferedImage(resampler.dstWidth, resampler.dstHeight, BufferedImage.TYPE_INT_ARGB)
+        resampler.resample(frame, (resampled.raster.dataBuffer as DataBufferInt).data, buffers)
+        return resampled
+    }
+
+    /**
+     * Largest power of two sample size the gif decoder can subsample by while frames stay at least
+     * as large as the target, only the remaining scale is left to the resampler.
+     */
+    fun gifSampleSize(srcWidth: Int, srcHeight: Int, dstWidth: Int, dstHeight: Int): Int {
+        val minWidth = dstWidth.coerceAtLeast(1)
+        val minHeight = dstHeight.coerceAtLeast(1)
+        var sampleSize = 1
+        while (srcWidth / (sampleSize * 2) >= minWidth && srcHeight / (sampleSize * 2) >= minHeight) sampleSize *= 2
+        return sampleSize
+    }
+
+    fun scaleBufferedImage(image: BufferedImage, height: Int?, width: Int?): BufferedImage {
         val scaleTo = getScaleDimensions(image.height, image.width, height, width)
         return ResampleOp(scaleTo.width, scaleTo.height, ResampleOp.FILTER_LANCZOS)
             .filter(image, null)
     }
 
-    private fun getScaleDimensions(srcHeight: Int, srcWidth: Int, height: Int?, width: Int?): ImageDimensions {
+    internal fun getScaleDimensions(srcHeight: Int, srcWidth: Int, height: Int?, width: Int?): ImageDimensions {
         return when {
             height != null && width != null -> scaleDimensions(srcHeight, srcWidth, height, width)
             height != null -> scaleDimensionsByMaxHeight(srcHeight, srcWidth, height)
@@ -90,10 +246,16 @@ object ImageConverter {
     }
 }
 
+/**
+ * @param mergedFrames identical consecutive frames merged into one
+ * @param droppedFrames frames dropped for being shown too briefly
+ */
 class ScaledBufferedImageFrames(
     val frames: List<ScaledBufferedImageFrame>,
     val width: Int,
     val height: Int,
+    val mergedFrames: Int = 0,
+    val droppedFrames: Int = 0,
 ) {
     class ScaledBufferedImageFrame(
         val data: BufferedImage,
@@ -101,7 +263,7 @@ class ScaledBufferedImageFrames(
     )
 }
 
-private class ImageDimensions(
+internal class ImageDimensions(
     val width: Int,
     val height: Int
 )
@@ -0,0 +1,113 @@
+package image
+
+import androidx.compose.ui.graphics.ImageBitmap
+import androidx.compose.ui.graphics.asComposeImageBitmap
+import org.jetbrains.skia.Bitmap
+import org.jetbrains.skia.ColorAlphaType.UNPREMUL
+import org.jetbrains.skia.ColorInfo
+import org.jetbrains.skia.ColorSpace.Companion.sRGB
+import org.jetbrains.skia.ColorType.BGRA_8888
+import org.jetbrains.skia.ImageInfo
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.IntBuffer
+
+/**
+ * Colors per [IndexedFrame] palette, index 0 is reserved for fully transparent pixels.
+ */
+const val PALETTE_SIZE = 256
+
+/**
+ * Bytes of an [IndexedFrame] palette.
+ */
+const val PALETTE_BYTES = PALETTE_SIZE * 4
+
+/**
+ * The displayed frame and the previously displayed one that can still be on screen until the next draw.
+ */
+private const val EXPANDED_BITMAPS = 2
+
+/**
+ * Frame stored as one palette index per pixel, a quarter of the size of BGRA_8888 pixels.
+ *
+ * Frames of an [IndexedAnimation] after the first only hold the rectangle at [x], [y] that changed since
+ * the previous frame, it is empty when nothing changed.
+ *
+ * @param palette [PALETTE_SIZE] BGRA_8888 colors, see [PaletteQuantizer]
+ * @param indices width * height palette indices
+ */
+class IndexedFrame(
+    val palette: ByteBuffer,
+    val indices: ByteBuffer,
+    val width: Int,
+    val height: Int,
+    val delay: Int,
+    val x: Int = 0,
+    val y: Int = 0,
+) {
+    val byteSize: Long
+        get() = palette.remaining().toLong() + indices.remaining()
+
+    /**
+     * Writes the frame into its rectangle of [destination] as BGRA_8888, pixels outside of it are left as they are.
+     *
+     * @param destination pixels of the animation viewed as ints
+     * @param canvasWidth width of the animation [destination] belongs to
+     * @param colors [PALETTE_SIZE] ints the palette is copied into, reused by every frame expanded
+     */
+    fun expandInto(destination: IntBuffer, canvasWidth: Int, colors: IntArray) {
+        // colors are copied as ints, the byte order only has to match on both sides
+        palette.duplicate().order(ByteOrder.BIG_ENDIAN).asIntBuffer().get(colors, 0, PALETTE_SIZE)
+        for (row in 0 until height) {
+            val rowOffset = (y + row) * canvasWidth + x
+            val indexOffset = row * width
+            for (column in 0 until width) {
+                destination.put(rowOffset + column, colors[indices.get(indexOffset + column).toInt() and 0xFF])
+            }
+        }
+    }
+}
+
+/**
+ * Animation kept as [IndexedFrame]s instead of a BGRA bitmap per frame.
+ *
+ * The first frame covers the whole animation, later frames are applied on top of their predecessor.
+ * Frames are expanded to BGRA only when drawn, into a ring of bitmaps shared by every painter of the
+ * animation. Copies of an emote play in sync on [AnimationClock], so a frame is expanded once however
+ * many copies are on screen. Frames must only be drawn from the UI thread.
+ */
+class IndexedAnimation(
+    val frames: List<IndexedFrame>,
+    override val width: Int,
+    override val height: Int,
+) : AnimationFrames {
+    override val delays = frames.map { it.delay }
+
+    val byteSize: Long
+        get() = frames.sumOf { it.byteSize } + EXPANDED_BITMAPS * width.toLong() * height * 4
+
+    private val pixels by lazy { ByteArray(width * height * 4) }
+    private val pixelInts by lazy { ByteBuffer.wrap(pixels).asIntBuffer() }
+    private val colors = IntArray(PALETTE_SIZE)
+    private val bitmaps by lazy { Array(EXPANDED_BITMAPS) { createBitmap() } }
+    private val imageBitmaps by lazy { Array(EXPANDED_BITMAPS) { bitmaps[it].asComposeImageBitmap() } }
+    private var expandedFrame = -1
+    private var ringIndex = 0
+
+    override fun bitmap(frameIndex: Int): ImageBitmap {
+        if (frameIndex != expandedFrame) {
+            ringIndex = (ringIndex + 1) % EXPANDED_BITMAPS
+            // skipped frames still have to be applied, going back restarts from the first frame
+            val from = if (expandedFrame in 0 until frameIndex) expandedFrame + 1 else 0
+            for (i in from..frameIndex) frames[i].expandInto(pixelInts, width, colors)
+            bitmaps[ringIndex].installPixels(pixels)
+            expandedFrame = frameIndex
+        }
+        return imageBitmaps[ringIndex]
+    }
+
+    private fun createBitmap(): Bitmap {
+        val imageInfo = ImageInfo(ColorInfo(BGRA_8888, UNPREMUL, sRGB), width, height)
+        return Bitmap().apply { allocPixels(imageInfo) }
+    }
+}
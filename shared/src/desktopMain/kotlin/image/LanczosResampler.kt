@@ -0,0 +1,162 @@
+package image
+
+import kotlin.math.PI
+import kotlin.math.ceil
+import kotlin.math.floor
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.roundToInt
+import kotlin.math.sin
+
+private const val LANCZOS_RADIUS = 3
+
+/**
+ * Separable Lanczos3 resampler for packed, non-premultiplied ARGB pixels.
+ *
+ * Filter weights depend only on source and target dimensions, they are computed once and reused for every
+ * image resampled by the same instance, e.g. all frames of a gif. Pixels are premultiplied while filtering
+ * so that transparent pixels don't bleed their color into opaque ones.
+ *
+ * An instance holds no per call state and can be used from multiple threads. Intermediate buffers are owned by
+ * the caller, see [Buffers], so that frames resampled one after another don't allocate.
+ */
+class LanczosResampler(
+    private val srcWidth: Int,
+    private val srcHeight: Int,
+    val dstWidth: Int,
+    val dstHeight: Int,
+) {
+    private val horizontal = FilterWeights(srcWidth, dstWidth)
+    private val vertical = FilterWeights(srcHeight, dstHeight)
+
+    /**
+     * @param src srcWidth * srcHeight pixels
+     * @param dst dstWidth * dstHeight pixels
+     * @param buffers created by this resampler, used by one call at a time
+     */
+    fun resample(src: IntArray, dst: IntArray, buffers: Buffers = Buffers()) {
+        require(src.size >= srcWidth * srcHeight) { "Source has ${src.size} pixels, expected ${srcWidth * srcHeight}" }
+        require(dst.size >= dstWidth * dstHeight) { "Destination has ${dst.size} pixels, expected ${dstWidth * dstHeight}" }
+
+        val rows = buffers.rows
+        for (y in 0 until srcHeight) resampleRow(src, y, rows)
+
+        val row = buffers.row
+        for (y in 0 until dstHeight) {
+            resampleColumn(rows, y, row)
+            writeRow(row, dst, y * dstWidth)
+        }
+    }
+
+    /**
+     * Intermediate buffers of one [resample] call, about srcHeight * dstWidth * 16 bytes.
+     */
+    inner class Buffers {
+        /**
+         * 4 premultiplied float channels per pixel, source rows by target columns
+         */
+        internal val rows = FloatArray(srcHeight * dstWidth * 4)
+        internal val row = FloatArray(dstWidth * 4)
+
+        val byteSize: Long
+            get() = (rows.size + row.size) * 4L
+    }
+
+    private fun resampleRow(src: IntArray, y: Int, rows: FloatArray) {
+        val srcOffset = y * srcWidth
+        var out = y * dstWidth * 4
+        for (x in 0 until dstWidth) {
+            val start = srcOffset + horizontal.starts[x]
+            val weightOffset = x * horizontal.taps
+            var a = 0f
+            var r = 0f
+            var g = 0f
+            var b = 0f
+            for (k in 0 until horizontal.counts[x]) {
+                val pixel = src[start + k]
+                val weight = horizontal.weights[weightOffset + k]
+                val alpha = (pixel ushr 24) * weight
+                a += alpha
+                r += (pixel shr 16 and 0xFF) * alpha
+                g += (pixel shr 8 and 0xFF) * alpha
+                b += (pixel and 0xFF) * alpha
+            }
+            rows[out] = a
+            rows[out + 1] = r
+            rows[out + 2] = g
+            rows[out + 3] = b
+            out += 4
+        }
+    }
+
+    private fun resampleColumn(rows: FloatArray, y: Int, row: FloatArray) {
+        row.fill(0f)
+        val start = vertical.starts[y]
+        val weightOffset = y * vertical.taps
+        val rowSize = dstWidth * 4
+        for (k in 0 until vertical.counts[y]) {
+            val weight = vertical.weights[weightOffset + k]
+            val srcRow = (start + k) * rowSize
+            for (i in 0 until rowSize) row[i] += rows[srcRow + i] * weight
+        }
+    }
+
+    private fun writeRow(row: FloatArray, dst: IntArray, offset: Int) {
+        for (x in 0 until dstWidth) {
+            val alpha = row[x * 4]
+            val a = clamp(alpha)
+            if (a == 0) {
+                dst[offset + x] = 0
+                continue
+            }
+            val r = clamp(row[x * 4 + 1] / alpha)
+            val g = clamp(row[x * 4 + 2] / alpha)
+            val b = clamp(row[x * 4 + 3] / alpha)
+            dst[offset + x] = (a shl 24) or (r shl 16) or (g shl 8) or b
+        }
+    }
+
+    private fun clamp(value: Float) = value.roundToInt().coerceIn(0, 255)
+
+    /**
+     * Contributing source pixels of every target pixel, weights are stored with a fixed stride of [taps].
+     */
+    private class FilterWeights(srcSize: Int, dstSize: Int) {
+        val starts = IntArray(dstSize)
+        val counts = IntArray(dstSize)
+        val taps: Int
+        val weights: FloatArray
+
+        init {
+            val scale = srcSize.toDouble() / dstSize
+            // widen the kernel when downscaling so that it covers every source pixel
+            val filterScale = max(scale, 1.0)
+            val support = LANCZOS_RADIUS * filterScale
+            taps = ceil(support * 2).toInt() + 1
+            weights = FloatArray(dstSize * taps)
+
+            for (i in 0 until dstSize) {
+                val center = (i + 0.5) * scale - 0.5
+                val start = max(ceil(center - support).toInt(), 0)
+                val end = min(floor(center + support).toInt(), srcSize - 1)
+                val count = min(end - start + 1, taps)
+
+                var sum = 0.0
+                val kernel = DoubleArray(count) { k -> lanczos((start + k - center) / filterScale).also { sum += it } }
+                if (sum == 0.0) sum = 1.0
+                for (k in 0 until count) weights[i * taps + k] = (kernel[k] / sum).toFloat()
+                starts[i] = start
+                counts[i] = count
+            }
+        }
+
+        private fun lanczos(x: Double): Double = when {
+            x == 0.0 -> 1.0
+            x <= -LANCZOS_RADIUS || x >= LANCZOS_RADIUS -> 0.0
+            else -> {
+                val px = PI * x
+                LANCZOS_RADIUS * sin(px) * sin(px / LANCZOS_RADIUS) / (px * px)
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package image
+
+import image.ScaledImage.AnimatedImage
+import image.ScaledImage.StaticImage
+import image.ScaledImage.StreamingAnimatedImage
+import image.ScaledImagesDiskCache.CacheKey
+import mu.KotlinLogging
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * In-memory LRU of ready to draw images, shared by every emote composable.
+ * Bounded by the estimated size of decoded pixels rather than by entry count.
+ */
+class MemoryImageCache(
+    private val maxBytes: Long,
+) {
+    private val entries = LinkedHashMap<CacheKey, ScaledImage>(16, 0.75f, true)
+    private var currentBytes = 0L
+
+    private var hits = 0L
+    private var misses = 0L
+    private var evictions = 0L
+
+    @Synchronized
+    fun get(key: CacheKey): ScaledImage? {
+        val cached = entries[key]
+        if (cached == null) misses++ else hits++
+        return cached
+    }
+
+    /**
+     * Looks up [key] without counting a hit or miss, for checks within a load that already called [get]
+     * and for prefetching.
+     */
+    @Synchronized
+    fun peek(key: CacheKey): ScaledImage? = entries[key]
+
+    @Synchronized
+    fun put(key: CacheKey, image: ScaledImage) {
+        val byteSize = byteSize(image)
+        if (byteSize > maxBytes) return
+
+        entries.put(key, image)?.let { currentBytes -= byteSize(it) }
+        currentBytes += byteSize
+
+        val iterator = entries.entries.iterator()
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            val eldest = iterator.next()
+            iterator.remove()
+            currentBytes -= byteSize(eldest.value)
+            evictions++
+            logger.debug { "evicted ${eldest.key.url} from memory cache" }
+        }
+    }
+
+    /**
+     * Drops every size of the image at [url].
+     */
+    @Synchronized
+    fun removeUrl(url: String) {
+        val iterator = entries.entries.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (entry.key.url != url) continue
+            iterator.remove()
+            currentBytes -= byteSize(entry.value)
+        }
+    }
+
+    @Synchronized
+    fun stats() = Stats(
+        hits = hits,
+        misses = misses,
+        evictions = evictions,
+        entries = entries.size,
+        sizeBytes = currentBytes,
+        maxSizeBytes = maxBytes
+    )
+
+    private fun byteSize(image: ScaledImage): Long = when (image) {
+        is StaticImage -> pixelBytes(image.width, image.height)
+        is AnimatedImage -> image.animation.byteSize
+        is StreamingAnimatedImage -> image.animation.byteSize
+    }
+
+    private fun pixelBytes(width: Int, height: Int) = width.toLong() * height * 4
+
+    data class Stats(
+        val hits: Long,
+        val misses: Long,
+        val evictions: Long,
+        val entries: Int,
+        val sizeBytes: Long,
+        val maxSizeBytes: Long,
+    )
+}
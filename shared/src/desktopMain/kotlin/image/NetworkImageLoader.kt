@@ -1,49 +1,195 @@
 package image
 
+import image.DiskCache.Metadata
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.suspendCancellableCoroutine
 import mu.KotlinLogging
 import okhttp3.*
 import okhttp3.HttpUrl.Companion.toHttpUrl
+import okio.ByteString.Companion.encodeUtf8
+import org.snd.gifdecoder.GifDecoder
+import org.snd.gifdecoder.GifHeader
+import org.snd.gifdecoder.StreamingGifParser
 import java.io.IOException
+import java.net.HttpURLConnection.HTTP_NOT_MODIFIED
+import java.time.Duration
 import kotlin.coroutines.resume
 import kotlin.coroutines.resumeWithException
 
 private val logger = KotlinLogging.logger {}
 
+/**
+ * Freshness of responses without Cache-Control max-age.
+ */
+private val DEFAULT_FRESHNESS = Duration.ofDays(1)
+
+/**
+ * Lower bound of freshness so that no-cache responses are not revalidated on every use.
+ */
+private val MIN_FRESHNESS = Duration.ofMinutes(5)
+
+private val GIF_SIGNATURE = "GIF8".encodeUtf8()
+
+/**
+ * Largest Content-Length a gif receive buffer is allocated for up front, larger gifs grow it as they arrive.
+ */
+private const val MAX_PREALLOCATED_GIF = 16 * 1024 * 1024
+
+/**
+ * @param onImageUpdated called with the url of a cached image whose content changed on revalidation
+ */
 class NetworkImageLoader(
-    private val client: OkHttpClient
+    private val client: OkHttpClient,
+    private val cache: DiskCache = DiskCache(),
+    private val onImageUpdated: (url: String) -> Unit = {},
 ) {
 
-    private val cache: DiskCache = DiskCache().apply { initialize() }
+    init {
+        cache.initialize()
+    }
 
-    suspend fun getImage(url: String): Result<ByteArray> {
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val downloads = DownloadScheduler(scope)
+
+    suspend fun getImage(url: String, priority: ImagePriority): Result<DownloadedImage> {
         return try {
             val cached = cache.getImage(url)
             if (cached != null) {
                 logger.debug { "loading image from disk cache $url" }
+                revalidate(url)
                 return Result.Success(cached)
             }
             logger.debug { "loading image from network $url" }
-            val image = loadImageFromNetwork(url)
+            val image = downloads.download(url, priority) { loadImageFromNetwork(url) }
             return Result.Success(image)
+        } catch (e: CancellationException) {
+            throw e
         } catch (e: Exception) {
             logger.error(e) { }
             Result.Error(e)
         }
     }
 
-    private suspend fun loadImageFromNetwork(url: String): ByteArray {
+    /**
+     * Hash of the cached content of [url] or null if it's not in the disk cache.
+     */
+    fun getCachedContentHash(url: String) = cache.getContentHash(url)
+
+    /**
+     * Revalidates the cached image of [url] in background with [ImagePriority.PREFETCH] once it's stale.
+     * Unchanged images only cost a 304 response, changed ones replace the cached content and are reported
+     * through [onImageUpdated].
+     */
+    fun revalidate(url: String) {
+        val metadata = cache.getMetadata(url) ?: return
+        if (!metadata.isStale) return
+
+        scope.launch {
+            try {
+                downloads.download(url, ImagePriority.PREFETCH) { revalidateImage(url, metadata) }
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                logger.warn(e) { "failed to revalidate $url" }
+            }
+        }
+    }
+
+    fun diskCacheStats() = cache.stats()
+
+    fun downloadStats() = downloads.stats()
+
+    /**
+     * Returns the current image of [url], joined downloads of the same url get the same bytes either way.
+     */
+    private suspend fun revalidateImage(url: String, metadata: Metadata): DownloadedImage {
+        val request = Request.Builder().url(url.toHttpUrl())
+            .apply {
+                metadata.etag?.let { header("If-None-Match", it) }
+                metadata.lastModified?.let { header("If-Modified-Since", it) }
+            }
+            .build()
+
+        return client.newCall(request).await().use { response ->
+            if (response.code == HTTP_NOT_MODIFIED) {
+                logger.debug { "cached image $url is not modified" }
+                cache.updateMetadata(url, response.toMetadata(previous = metadata))
+                return cache.getImage(url) ?: loadImageFromNetwork(url)
+            }
+            if (!response.isSuccessful) throw BadResponse()
+
+            val image = response.toImage()
+            val previousHash = cache.getContentHash(url)
+            cache.addImage(url, image, response.toMetadata())
+            if (cache.getContentHash(url) != previousHash) {
+                logger.info { "cached image $url changed" }
+                onImageUpdated(url)
+            }
+            image
+        }
+    }
+
+    private suspend fun loadImageFromNetwork(url: String): DownloadedImage {
         val request = Request.Builder().url(url.toHttpUrl()).build()
-        val call = client.newCall(request)
+        return client.newCall(request).await().use { response ->
+            val image = response.toImage()
+            cache.addImage(url, image, response.toMetadata())
+            image
+        }
+    }
+
+    /**
+     * Content is detected once here, the media type is stored with the cached image.
+     */
+    private fun Response.toImage(): DownloadedImage {
+        val body = body ?: throw BadResponse()
+        if (body.source().rangeEquals(0, GIF_SIGNATURE)) return body.toGifImage()
+
+        val bytes = body.bytes()
+        val mediaType = ContentDetector.getMediaType(bytes)
+        if (!ContentDetector.isSupportedMediaType(mediaType)) throw RuntimeException("Unsupported image format")
+        return DownloadedImage(bytes, mediaType)
+    }
+
+    /**
+     * Gifs are parsed block by block while they are received, the header is ready with the last byte instead
+     * of the whole file being parsed again after the download.
+     */
+    private fun ResponseBody.toGifImage(): DownloadedImage {
+        val contentLength = contentLength().takeIf { it in 1..MAX_PREALLOCATED_GIF }?.toInt() ?: -1
+        val parser = StreamingGifParser(contentLength)
+        val header = parser.readFully(source())
+        val data = parser.data.let { received -> ByteArray(received.remaining()).also { received.get(it) } }
+        return DownloadedImage(data, ContentDetector.GIF, gifHeader = header.takeIf { it.status == GifDecoder.STATUS_OK })
+    }
+
+    /**
+     * 304 responses may omit validators, those of the revalidated response are kept then.
+     */
+    private fun Response.toMetadata(previous: Metadata = Metadata()): Metadata {
+        val maxAge = cacheControl.maxAgeSeconds
+        val freshness = when {
+            cacheControl.noCache || cacheControl.noStore -> MIN_FRESHNESS
+            maxAge >= 0 -> maxOf(Duration.ofSeconds(maxAge.toLong()), MIN_FRESHNESS)
+            else -> DEFAULT_FRESHNESS
+        }
+
+        return Metadata(
+            etag = header("ETag") ?: previous.etag,
+            lastModified = header("Last-Modified") ?: previous.lastModified,
+            expiresAt = System.currentTimeMillis() + freshness.toMillis()
+        )
+    }
+
+    private suspend fun Call.await(): Response {
         return suspendCancellableCoroutine { continuation ->
-            call.enqueue(object : Callback {
+            enqueue(object : Callback {
                 override fun onResponse(call: Call, response: Response) {
-                    val body = response.body?.bytes() ?: throw BadResponse()
-                    if (ContentDetector.isSupported(body)) {
-                        cache.addImage(url, body)
-                        continuation.resume(body)
-                    } else
-                        continuation.resumeWithException(RuntimeException("Unsupported image format"))
+                    continuation.resume(response)
                 }
 
                 override fun onFailure(call: Call, e: IOException) {
@@ -54,7 +200,7 @@ class NetworkImageLoader(
 
             continuation.invokeOnCancellation {
                 try {
-                    call.cancel()
+                    cancel()
                 } catch (ex: Throwable) {
                     //Ignore cancel exception
                 }
@@ -68,4 +214,14 @@ sealed class Result<out R> {
     data class Error(val exception: Exception) : Result<Nothing>()
 }
 
+/**
+ * @param mediaType type of [data] as detected by [ContentDetector]
+ * @param gifHeader header parsed while a gif was downloaded, null for other images and those loaded from disk
+ */
+class DownloadedImage(
+    val data: ByteArray,
+    val mediaType: String,
+    val gifHeader: GifHeader? = null,
+)
+
 class BadResponse : RuntimeException()
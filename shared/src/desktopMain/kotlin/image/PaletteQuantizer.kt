@@ -0,0 +1,272 @@
+package image
+
+import java.nio.ByteBuffer
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Bits kept per channel when colors are grouped by median cut.
+ */
+private const val KEY_BITS = 5
+private const val KEY_MASK = (1 shl KEY_BITS) - 1
+private const val KEY_CHANNELS = 4
+
+/**
+ * Channels are numbered in ARGB order, the shift of a channel is its position from the least significant end.
+ */
+private fun channelShift(channel: Int) = KEY_CHANNELS - 1 - channel
+
+/**
+ * Reduces ARGB frames to [IndexedFrame]s of at most [PALETTE_SIZE] colors.
+ *
+ * Frames with few enough distinct colors keep them exactly. Others, e.g. gif frames blended by
+ * resampling, are reduced by median cut over colors truncated to [KEY_BITS] per channel, each palette
+ * color is the average of its box at full precision. Fully transparent pixels always map to index 0 so
+ * that transparent backgrounds stay transparent. There is no dithering, it would flicker between frames.
+ */
+object PaletteQuantizer {
+
+    /**
+     * Quantizes the frames of an animation, every frame after the first only keeps the rectangle that
+     * differs from the previous frame.
+     *
+     * Changes are found by comparing the frames rather than taken from gif frame bounds, resampling spreads
+     * a change over neighbouring pixels and disposal changes pixels outside of the frame bounds.
+     *
+     * @param frames width * height non-premultiplied ARGB pixels each
+     */
+    fun quantizeAnimation(frames: List<IntArray>, delays: List<Int>, width: Int, height: Int): IndexedAnimation {
+        val indexed = frames.mapIndexed { i, argb ->
+            if (i == 0) return@mapIndexed quantize(argb, width, height, delays[i])
+
+            val previous = frames[i - 1]
+            var top = -1
+            var bottom = -1
+            var left = width
+            var right = -1
+            for (y in 0 until height) {
+                val offset = y * width
+                var x = 0
+                while (x < width && argb[offset + x] == previous[offset + x]) x++
+                if (x == width) continue
+
+                var lastX = width - 1
+                while (argb[offset + lastX] == previous[offset + lastX]) lastX--
+                if (top < 0) top = y
+                bottom = y
+                left = min(left, x)
+                right = max(right, lastX)
+            }
+            if (top < 0) return@mapIndexed quantize(IntArray(0), 0, 0, delays[i])
+
+            val rectWidth = right - left + 1
+            val rectHeight = bottom - top + 1
+            val rect = IntArray(rectWidth * rectHeight)
+            for (row in 0 until rectHeight) argb.copyInto(
+                rect,
+                destinationOffset = row * rectWidth,
+                startIndex = (top + row) * width + left,
+                endIndex = (top + row) * width + left + rectWidth
+            )
+            quantize(rect, rectWidth, rectHeight, delays[i], x = left, y = top)
+        }
+        return IndexedAnimation(indexed, width = width, height = height)
+    }
+
+    /**
+     * @param argb width * height non-premultiplied ARGB pixels
+     * @param x position of the pixels in their animation
+     * @param y position of the pixels in their animation
+     */
+    fun quantize(argb: IntArray, width: Int, height: Int, delay: Int, x: Int = 0, y: Int = 0): IndexedFrame {
+        val pixelCount = width * height
+        val palette = IntArray(PALETTE_SIZE)
+        val indices = ByteArray(pixelCount)
+
+        var visibleCount = 0
+        val visible = IntArray(pixelCount)
+        for (i in 0 until pixelCount) if (argb[i] ushr 24 != 0) visible[visibleCount++] = argb[i]
+
+        val colors = visible.copyOf(visibleCount).apply { sort() }
+        val colorCount = colors.uniqueInPlace()
+        if (colorCount < PALETTE_SIZE) {
+            colors.copyInto(palette, destinationOffset = 1, endIndex = colorCount)
+            for (i in 0 until pixelCount) {
+                val color = argb[i]
+                if (color ushr 24 != 0) indices[i] = (colors.binarySearch(color, toIndex = colorCount) + 1).toByte()
+            }
+        } else {
+            medianCut(argb, indices, palette, visible, visibleCount)
+        }
+
+        return IndexedFrame(
+            palette = ByteBuffer.wrap(palette.toBgraPalette()),
+            indices = ByteBuffer.wrap(indices),
+            width = width,
+            height = height,
+            delay = delay,
+            x = x,
+            y = y
+        )
+    }
+
+    private fun medianCut(argb: IntArray, indices: ByteArray, palette: IntArray, visible: IntArray, visibleCount: Int) {
+        // truncated colors with the full color in the low bits, sorting groups equal keys
+        val keyed = LongArray(visibleCount) { (key(visible[it]).toLong() shl 32) or (visible[it].toLong() and 0xFFFFFFFFL) }
+        keyed.sort()
+
+        val keys = IntArray(visibleCount)
+        val counts = IntArray(visibleCount)
+        val sums = Array(KEY_CHANNELS) { LongArray(visibleCount) }
+        var keyCount = 0
+        for (entry in keyed) {
+            val key = (entry ushr 32).toInt()
+            if (keyCount == 0 || keys[keyCount - 1] != key) keys[keyCount++] = key
+            val color = entry.toInt()
+            val k = keyCount - 1
+            counts[k]++
+            for (channel in 0 until KEY_CHANNELS) sums[channel][k] += (color ushr channelShift(channel) * 8 and 0xFF).toLong()
+        }
+
+        val boxes = Boxes(keys, counts, keyCount)
+        while (boxes.size < PALETTE_SIZE - 1 && boxes.split()) {
+            // split until the palette is full or every box holds a single key
+        }
+
+        val boxOfKey = IntArray(keyCount)
+        for (box in 0 until boxes.size) {
+            var count = 0L
+            val channelSums = LongArray(KEY_CHANNELS)
+            for (i in boxes.start[box] until boxes.end[box]) {
+                val k = boxes.order[i]
+                boxOfKey[k] = box + 1
+                count += counts[k]
+                for (channel in 0 until KEY_CHANNELS) channelSums[channel] += sums[channel][k]
+            }
+            var color = 0
+            for (channel in 0 until KEY_CHANNELS) {
+                val average = ((channelSums[channel] + count / 2) / count).toInt()
+                color = color or (average shl channelShift(channel) * 8)
+            }
+            palette[box + 1] = color
+        }
+
+        for (i in indices.indices) {
+            val color = argb[i]
+            if (color ushr 24 != 0) indices[i] = boxOfKey[keys.binarySearch(key(color), toIndex = keyCount)].toByte()
+        }
+    }
+
+    /**
+     * Keys of a box are a range of [order], boxes are split at the weighted median of their widest channel.
+     */
+    private class Boxes(private val keys: IntArray, private val counts: IntArray, keyCount: Int) {
+        val order = IntArray(keyCount) { it }
+        val start = IntArray(PALETTE_SIZE)
+        val end = IntArray(PALETTE_SIZE)
+        var size = 1
+            private set
+
+        private val score = LongArray(PALETTE_SIZE)
+        private val channel = IntArray(PALETTE_SIZE)
+        private val sortBuffer = LongArray(keyCount)
+
+        init {
+            end[0] = keyCount
+            updateScore(0)
+        }
+
+        /**
+         * Splits the box with the widest channel range weighted by pixel count.
+         *
+         * @return false if no box can be split anymore
+         */
+        fun split(): Boolean {
+            var best = -1
+            for (box in 0 until size) if (score[box] > 0 && (best < 0 || score[box] > score[best])) best = box
+            if (best < 0) return false
+
+            val from = start[best]
+            val to = end[best]
+            val shift = channelShift(channel[best]) * KEY_BITS
+            for (i in from until to) sortBuffer[i] = ((keys[order[i]] ushr shift and KEY_MASK).toLong() shl 32) or order[i].toLong()
+            sortBuffer.sort(from, to)
+
+            var total = 0L
+            for (i in from until to) {
+                order[i] = sortBuffer[i].toInt()
+                total += counts[order[i]]
+            }
+            var median = from + 1
+            var count = 0L
+            for (i in from until to - 1) {
+                count += counts[order[i]]
+                median = i + 1
+                if (count * 2 >= total) break
+            }
+
+            start[size] = median
+            end[size] = to
+            end[best] = median
+            updateScore(best)
+            updateScore(size)
+            size++
+            return true
+        }
+
+        private fun updateScore(box: Int) {
+            score[box] = 0
+            if (end[box] - start[box] < 2) return
+
+            val min = IntArray(KEY_CHANNELS) { KEY_MASK }
+            val max = IntArray(KEY_CHANNELS)
+            var count = 0L
+            for (i in start[box] until end[box]) {
+                val key = keys[order[i]]
+                count += counts[order[i]]
+                for (c in 0 until KEY_CHANNELS) {
+                    val value = key ushr channelShift(c) * KEY_BITS and KEY_MASK
+                    if (value < min[c]) min[c] = value
+                    if (value > max[c]) max[c] = value
+                }
+            }
+            for (c in 0 until KEY_CHANNELS) {
+                val channelScore = (max[c] - min[c]) * count
+                if (channelScore > score[box]) {
+                    score[box] = channelScore
+                    channel[box] = c
+                }
+            }
+        }
+    }
+
+    private fun key(color: Int): Int {
+        var key = 0
+        for (channel in 0 until KEY_CHANNELS) {
+            val value = color ushr channelShift(channel) * 8 + (8 - KEY_BITS) and KEY_MASK
+            key = key or (value shl channelShift(channel) * KEY_BITS)
+        }
+        return key
+    }
+
+    /**
+     * Removes duplicates from a sorted array, returns the number of distinct values at its start.
+     */
+    private fun IntArray.uniqueInPlace(): Int {
+        var count = 0
+        for (i in indices) if (i == 0 || this[i] != this[i - 1]) this[count++] = this[i]
+        return count
+    }
+
+    private fun IntArray.toBgraPalette(): ByteArray {
+        val bytes = ByteArray(PALETTE_BYTES)
+        for (i in indices) {
+            val color = this[i]
+            bytes[i * 4] = color.toByte()
+            bytes[i * 4 + 1] = (color shr 8).toByte()
+            bytes[i * 4 + 2] = (color shr 16).toByte()
+            bytes[i * 4 + 3] = (color ushr 24).toByte()
+        }
+        return bytes
+    }
+}
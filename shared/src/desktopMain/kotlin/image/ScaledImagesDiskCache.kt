@@ -3,89 +3,612 @@
 package image
 
 import dev.dirs.ProjectDirectories
+import mu.KotlinLogging
 import org.apache.commons.io.FileUtils
 import org.jetbrains.skia.*
+import java.io.*
+import java.math.BigInteger
 import java.net.URI
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 import java.nio.file.Files
 import java.nio.file.Path
+import java.nio.file.StandardCopyOption.ATOMIC_MOVE
+import java.nio.file.StandardCopyOption.REPLACE_EXISTING
+import java.nio.file.StandardOpenOption.APPEND
+import java.nio.file.StandardOpenOption.CREATE
+import java.nio.file.StandardOpenOption.READ
+import java.nio.file.StandardOpenOption.WRITE
+import java.security.MessageDigest
+import java.time.Duration
 import java.util.concurrent.ConcurrentHashMap
 import kotlin.io.path.exists
+import kotlin.io.path.isRegularFile
+import kotlin.io.path.name
 import kotlin.io.path.notExists
 
-class ScaledImagesDiskCache {
+private val logger = KotlinLogging.logger {}
+
+private const val INDEX_MAGIC = 0x50545343 // PTSC
+/**
+ * Bump when the layout of cached files or of the index changes, caches written with other versions are discarded.
+ */
+private const val FORMAT_VERSION = 7
+
+private const val RECORD_STATIC = 0
+private const val RECORD_FRAMES = 1
+private const val RECORD_LINK = 2
+private const val RECORD_REMOVE = 3
+private const val RECORD_ACCESS = 4
+private const val RECORD_STREAMED = 5
+
+/**
+ * Accesses are kept in memory and written to the index in batches of this many renditions.
+ */
+private const val ACCESS_BATCH_SIZE = 64
+
+/**
+ * Index is rewritten once it holds this many more records than there are renditions and links.
+ */
+private const val INDEX_COMPACTION_THRESHOLD = 2000
+
+private const val FRAMES_MAGIC = 0x50544652 // PTFR
+private const val FRAMES_HEADER_SIZE = 3 * Int.SIZE_BYTES
+private const val FRAMES_TABLE_ENTRY_SIZE = Long.SIZE_BYTES + 5 * Int.SIZE_BYTES
+
+/**
+ * Disk cache of scaled images, BGRA_8888 pixels for static images and palette indexed frames for animations.
+ *
+ * Image metadata lives in an append-only index that is loaded on [initialize] and compacted there and once it
+ * grows too far past the entries it describes, so scaled images survive restarts without having to be decoded
+ * and resampled again.
+ *
+ * Renditions are stored by hash of the source image and target size, urls are linked to them. Urls serving
+ * identical images share one rendition on disk, see [linkToSource]. A rendition is deleted once no url links to
+ * it anymore, e.g. after the source changed. Like [DiskCache], renditions are evicted least recently used first
+ * once the cache grows past [maxSize] and when they haven't been accessed for [maxAge], e.g. those of
+ * sizes emotes are no longer shown at.
+ *
+ * Gifs too long to scale up front are streamed, see [StreamingGifAnimation]. Their renditions have no file and
+ * only record that the source is streamed at that size, see [putStreamed].
+ *
+ * All frames of an animation are packed in a single file:
+ * ```
+ * magic: Int, version: Int, frameCount: Int
+ * frameCount * (offset: Long, delay: Int, x: Int, y: Int, width: Int, height: Int)
+ * frameCount * (palette: PALETTE_BYTES, indices: width * height)
+ * ```
+ * Frame offsets point at the palette, see [IndexedFrame] for the frame layout. Frames after the first only
+ * cover the rectangle at x, y that changed since the previous frame.
+ * The file is memory mapped on read and frames are returned as slices of the mapping.
+ *
+ * @param memoryMapped map cached files instead of reading them into heap arrays. Returned pixel buffers
+ * are then only valid while referenced, native code reading them must keep them reachable until it's done.
+ */
+class ScaledImagesDiskCache(
+    private val memoryMapped: Boolean = true,
+    private val maxSize: Long = 256L * 1024 * 1024,
+    private val maxAge: Duration = Duration.ofDays(30),
+) {
+    private val links = ConcurrentHashMap<String, String>()
     private val cache = ConcurrentHashMap<String, CachedImage>()
     private val framesCache = ConcurrentHashMap<String, CachedImageFrames>()
+    private val streamed = ConcurrentHashMap<String, StreamedRendition>()
+    private var size = 0L
+
+    private var index: DataOutputStream? = null
+    private var indexRecords = 0
+    private val accessed = ConcurrentHashMap.newKeySet<String>()
 
     private val cacheDirectory = Path.of(
         ProjectDirectories.from(
             "org", "snd", "PotatoTube"
         ).cacheDir
     )
+    private val scaledDirectory = cacheDirectory.resolve("scaled/")
+    private val scaledFramesDirectory = cacheDirectory.resolve("scaledFrames/")
+    private val indexPath = cacheDirectory.resolve("scaled.index")
 
-    fun putScaledImage(key: CacheKey, image: CacheImage) {
-        val keyString = getKeyString(key)
-        val filePath = cacheDirectory.resolve("scaled/").resolve(keyString)
-        if (filePath.notExists())
-            Files.createFile(filePath)
+    fun putScaledImage(key: CacheKey, image: CacheImage, sourceHash: String) {
+        val rendition = getRendition(key, sourceHash)
+        val filePath = scaledDirectory.resolve(rendition)
+        if (rendition !in cache) {
+            writeAtomically(filePath, arrayOf(image.pixels.duplicate()))
+            val cached = CachedImage(
+                path = filePath,
+                width = image.width,
+                height = image.height,
+                sourceHash = sourceHash,
+                size = Files.size(filePath),
+                lastAccess = System.currentTimeMillis()
+            )
+            addRendition(rendition, cached)
+        }
+        link(key, rendition)
+    }
+
+    fun putScaledImageFrames(key: CacheKey, frames: CacheImageFrames, sourceHash: String) {
+        val rendition = getRendition(key, sourceHash)
+        if (rendition in framesCache) {
+            link(key, rendition)
+            return
+        }
+
+        val filePath = scaledFramesDirectory.resolve(rendition)
+        writeFramesContainer(filePath, frames.frames)
 
-        Files.write(filePath, image.pixels)
-        cache[keyString] = CachedImage(path = filePath, width = image.width, height = image.height)
+        val cached = CachedImageFrames(
+            path = filePath,
+            frames = frames.frames.map {
+                CachedImageFrameData(
+                    delay = it.delay,
+                    x = it.x,
+                    y = it.y,
+                    width = it.width,
+                    height = it.height
+                )
+            },
+            width = frames.width,
+            height = frames.height,
+            sourceHash = sourceHash,
+            size = Files.size(filePath),
+            lastAccess = System.currentTimeMillis()
+        )
+        addRendition(rendition, cached)
+        link(key, rendition)
+    }
+
+    /**
+     * Concurrent loads of the same source at the same size both pass the unlocked check in [putScaledImage]
+     * and [putScaledImageFrames], the rendition added last replaces the identical one before it.
+     */
+    @Synchronized
+    private fun addRendition(rendition: String, cached: Rendition) {
+        val previous = when (cached) {
+            is CachedImage -> cache.put(rendition, cached).also { writeRecord { writeStatic(rendition, cached) } }
+            is CachedImageFrames -> framesCache.put(rendition, cached).also { writeRecord { writeFrames(rendition, cached) } }
+            is StreamedRendition -> streamed.put(rendition, cached).also { writeRecord { writeStreamed(rendition, cached) } }
+        }
+        size += cached.size - (previous?.size ?: 0)
+        trim()
     }
 
-    fun putScaledImageFrames(key: CacheKey, frames: CacheImageFrames) {
+    /**
+     * Records that the source is streamed at the size of [key] instead of being scaled up front, so that it's
+     * known without downloading and parsing it again.
+     */
+    fun putStreamed(key: CacheKey, sourceHash: String) {
+        val rendition = getRendition(key, sourceHash)
+        val cached = streamed[rendition]
+        if (cached != null) touch(rendition, cached)
+        else addRendition(rendition, StreamedRendition(sourceHash, System.currentTimeMillis()))
+        link(key, rendition)
+    }
+
+    /**
+     * Whether the image linked to [key] is streamed, its source has to be loaded to play it.
+     */
+    fun isStreamed(key: CacheKey): Boolean {
+        val rendition = links[getKeyString(key)] ?: return false
+        val cached = streamed[rendition] ?: return false
+        touch(rendition, cached)
+        return true
+    }
+
+    /**
+     * Links [key] to an already cached rendition of the same source image scaled to the same size,
+     * returns false when there is none and the image has to be scaled.
+     */
+    fun linkToSource(key: CacheKey, sourceHash: String): Boolean {
+        val rendition = getRendition(key, sourceHash)
+        if (!contains(rendition)) return false
+        link(key, rendition)
+        return true
+    }
+
+    private fun contains(rendition: String) = rendition in cache || rendition in framesCache || rendition in streamed
+
+    private fun getCached(rendition: String): Rendition? = cache[rendition] ?: framesCache[rendition] ?: streamed[rendition]
+
+    /**
+     * The rendition [key] was linked to before is deleted when no other url links to it.
+     */
+    @Synchronized
+    private fun link(key: CacheKey, rendition: String) {
         val keyString = getKeyString(key)
+        val previous = links.put(keyString, rendition)
+        if (previous == rendition) return
 
-        val pathToFrameMap = frames.frames
-            .mapIndexed { index, frame ->
-                val filePath = cacheDirectory.resolve("scaledFrames/")
-                    .resolve("${keyString}_${index}")
+        writeRecord { writeLink(keyString, rendition) }
+        if (previous != null && previous !in links.values) removeRendition(previous)
+    }
 
-                filePath to frame
-            }
+    /**
+     * Records an access for least recently used eviction. Access times are written to the index in batches
+     * off the read path, those of the last batch are lost when the app exits.
+     */
+    private fun touch(rendition: String, cached: Rendition) {
+        cached.lastAccess = System.currentTimeMillis()
+        if (accessed.add(rendition) && accessed.size >= ACCESS_BATCH_SIZE) writeAccessed()
+    }
 
-        pathToFrameMap.forEach { (path, frame) ->
-            if (path.notExists()) Files.createFile(path)
-            Files.write(path, frame.pixels)
+    @Synchronized
+    private fun writeAccessed() {
+        val renditions = accessed.toList()
+        accessed.removeAll(renditions.toSet())
+        renditions.forEach { rendition ->
+            val cached = getCached(rendition) ?: return@forEach
+            writeRecord { writeAccess(rendition, cached.lastAccess) }
         }
+    }
 
-        val cacheFrames = pathToFrameMap.associate { (path, frame) ->
-            path to CachedImageFrameData(
-                delay = frame.delay,
-                width = frame.width,
-                height = frame.height
-            )
+    /**
+     * Evicts least recently used renditions while the cache is larger than [maxSize] and expired ones.
+     * Links to evicted renditions are kept until the index is compacted, lookups through them miss.
+     */
+    @Synchronized
+    private fun trim() {
+        val expiredBefore = System.currentTimeMillis() - maxAge.toMillis()
+        val renditions = (cache.toList() + framesCache.toList() + streamed.toList()).sortedBy { it.second.lastAccess }
+        for ((rendition, cached) in renditions) {
+            if (size <= maxSize && cached.lastAccess >= expiredBefore) break
+            removeRendition(rendition)
+        }
+    }
+
+    @Synchronized
+    private fun removeRendition(rendition: String) {
+        val removed = cache.remove(rendition) ?: framesCache.remove(rendition) ?: streamed.remove(rendition) ?: return
+        size -= removed.size
+        writeRecord { writeRemove(rendition) }
+        val path = removed.path ?: return
+        try {
+            Files.deleteIfExists(path)
+        } catch (e: IOException) {
+            // still mapped by an image in use on platforms that lock mapped files, removed on next start
+            logger.debug { "failed to delete scaled image $path: ${e.message}" }
         }
-        framesCache[keyString] = CachedImageFrames(frames = cacheFrames, width = frames.width, height = frames.height)
     }
 
     fun getScaledImageFrames(key: CacheKey): CacheImageFrames? {
-        val cached = framesCache[getKeyString(key)] ?: return null
-        val frames = cached.frames.map { (path, frameData) ->
-            CacheImageFrame(
-                pixels = Files.readAllBytes(path),
-                width = frameData.width,
-                height = frameData.height,
-                delay = frameData.delay
-            )
+        val rendition = links[getKeyString(key)] ?: return null
+        val cached = framesCache[rendition] ?: return null
+        val frames = try {
+            readFramesContainer(cached.path)
+        } catch (e: IOException) {
+            logger.warn { "scaled frames of ${key.url} are missing or corrupted, dropping cache entry" }
+            removeRendition(rendition)
+            return null
         }
+        touch(rendition, cached)
         return CacheImageFrames(frames = frames, width = cached.width, height = cached.height)
     }
 
+    private fun writeFramesContainer(path: Path, frames: List<CacheImageFrame>) {
+        val header = ByteBuffer.allocate(FRAMES_HEADER_SIZE + frames.size * FRAMES_TABLE_ENTRY_SIZE)
+        header.putInt(FRAMES_MAGIC).putInt(FORMAT_VERSION).putInt(frames.size)
+        var offset = header.capacity().toLong()
+        frames.forEach { frame ->
+            header.putLong(offset).putInt(frame.delay).putInt(frame.x).putInt(frame.y).putInt(frame.width).putInt(frame.height)
+            offset += frame.palette.remaining() + frame.indices.remaining()
+        }
+        header.flip()
+
+        val frameBuffers = frames.flatMap { listOf(it.palette.duplicate(), it.indices.duplicate()) }
+        writeAtomically(path, arrayOf(header) + frameBuffers)
+    }
+
+    /**
+     * Readers never see a partially written file and existing mappings of the old file stay valid,
+     * truncating a mapped file in place would crash the process on the next access.
+     * Each write gets its own temporary file, the same rendition can be written by concurrent loads of
+     * urls serving identical images. Temporary files left by a crash are removed as unindexed.
+     */
+    private fun writeAtomically(path: Path, buffers: Array<ByteBuffer>) {
+        val tmpPath = Files.createTempFile(path.parent, path.name, ".tmp")
+        try {
+            FileChannel.open(tmpPath, WRITE).use { channel ->
+                // frames that didn't change have no indices, the last buffer can be empty from the start
+                while (buffers.any { it.hasRemaining() }) channel.write(buffers)
+            }
+            Files.move(tmpPath, path, REPLACE_EXISTING, ATOMIC_MOVE)
+        } catch (e: IOException) {
+            Files.deleteIfExists(tmpPath)
+            throw e
+        }
+    }
+
+    private fun readFile(path: Path): ByteBuffer {
+        return if (memoryMapped)
+            FileChannel.open(path, READ).use { it.map(FileChannel.MapMode.READ_ONLY, 0, it.size()) }
+        else ByteBuffer.wrap(Files.readAllBytes(path))
+    }
+
+    private fun readFramesContainer(path: Path): List<CacheImageFrame> {
+        val mapped = readFile(path)
+        try {
+            if (mapped.getInt() != FRAMES_MAGIC || mapped.getInt() != FORMAT_VERSION)
+                throw IOException("Unsupported frames container $path")
+
+            val frameCount = mapped.getInt()
+            return List(frameCount) {
+                val offset = mapped.getLong().toInt()
+                val delay = mapped.getInt()
+                val x = mapped.getInt()
+                val y = mapped.getInt()
+                val width = mapped.getInt()
+                val height = mapped.getInt()
+                CacheImageFrame(
+                    palette = mapped.sliceAt(offset, PALETTE_BYTES),
+                    indices = mapped.sliceAt(offset + PALETTE_BYTES, width * height),
+                    x = x,
+                    y = y,
+                    width = width,
+                    height = height,
+                    delay = delay
+                )
+            }
+        } catch (e: RuntimeException) {
+            // BufferUnderflowException or IllegalArgumentException of a truncated file
+            throw IOException("Corrupted frames container $path", e)
+        }
+    }
+
+    /**
+     * Absolute slice, ByteBuffer.slice(index, length) needs JDK 13.
+     */
+    private fun ByteBuffer.sliceAt(offset: Int, length: Int): ByteBuffer =
+        duplicate().limit(offset + length).position(offset).slice()
+
     fun getScaledImage(key: CacheKey): CacheImage? {
-        val cached = cache[getKeyString(key)] ?: return null
-        val pixels = Files.readAllBytes(cached.path)
+        val rendition = links[getKeyString(key)] ?: return null
+        val cached = cache[rendition] ?: return null
+        val pixels = try {
+            readFile(cached.path)
+        } catch (e: IOException) {
+            logger.warn { "scaled image of ${key.url} is missing, dropping cache entry" }
+            removeRendition(rendition)
+            return null
+        }
 
+        touch(rendition, cached)
         return CacheImage(pixels = pixels, width = cached.width, height = cached.height)
     }
 
+    /**
+     * Hash of the source image a cached entry was scaled from, used to detect renditions of outdated sources.
+     */
+    fun getSourceHash(key: CacheKey): String? {
+        val rendition = links[getKeyString(key)] ?: return null
+        return getCached(rendition)?.sourceHash
+    }
+
     fun initialize() {
-        val scaledDirectory = cacheDirectory.resolve("scaled/")
-        val scaledFramesDirectory = cacheDirectory.resolve("scaledFrames/")
-        if (scaledDirectory.exists()) FileUtils.forceDelete(scaledDirectory.toFile())
-        if (scaledFramesDirectory.exists()) FileUtils.forceDelete(scaledFramesDirectory.toFile())
+        Files.createDirectories(cacheDirectory)
+        try {
+            loadIndex()
+        } catch (e: IOException) {
+            logger.warn(e) { "scaled images cache index is unreadable, clearing scaled images cache" }
+            links.clear()
+            cache.clear()
+            framesCache.clear()
+            streamed.clear()
+            if (scaledDirectory.exists()) FileUtils.forceDelete(scaledDirectory.toFile())
+            if (scaledFramesDirectory.exists()) FileUtils.forceDelete(scaledFramesDirectory.toFile())
+        }
+
+        Files.createDirectories(scaledDirectory)
+        Files.createDirectories(scaledFramesDirectory)
+        removeUnlinkedRenditions()
+        removeUnindexedFiles()
+        size = cache.values.sumOf { it.size } + framesCache.values.sumOf { it.size }
+        trim()
+        links.entries.removeIf { (_, rendition) -> !contains(rendition) }
+        compactIndex()
+        logger.info {
+            "loaded ${cache.size} scaled images, ${framesCache.size} scaled and ${streamed.size} streamed animations " +
+                    "linked from ${links.size} urls from disk cache, ${size / 1024 / 1024}MB"
+        }
+    }
+
+    private fun loadIndex() {
+        if (indexPath.notExists()) return
+
+        DataInputStream(BufferedInputStream(Files.newInputStream(indexPath))).use { input ->
+            if (input.readInt() != INDEX_MAGIC || input.readInt() != FORMAT_VERSION)
+                throw IOException("Unsupported scaled images cache format")
+
+            // last record wins, a truncated record at the end means the app was killed mid write
+            try {
+                while (true) {
+                    when (input.readUnsignedByte()) {
+                        RECORD_STATIC -> {
+                            val rendition = input.readUTF()
+                            cache[rendition] = CachedImage(
+                                path = scaledDirectory.resolve(rendition),
+                                sourceHash = input.readUTF(),
+                                width = input.readInt(),
+                                height = input.readInt(),
+                                size = input.readLong(),
+                                lastAccess = input.readLong(),
+                            )
+                        }
+
+                        RECORD_FRAMES -> {
+                            val rendition = input.readUTF()
+                            val sourceHash = input.readUTF()
+                            val width = input.readInt()
+                            val height = input.readInt()
+                            val size = input.readLong()
+                            val lastAccess = input.readLong()
+                            val frameCount = input.readInt()
+                            val frames = List(frameCount) {
+                                CachedImageFrameData(
+                                    delay = input.readInt(),
+                                    x = input.readInt(),
+                                    y = input.readInt(),
+                                    width = input.readInt(),
+                                    height = input.readInt(),
+                                )
+                            }
+                            framesCache[rendition] = CachedImageFrames(
+                                path = scaledFramesDirectory.resolve(rendition),
+                                frames = frames,
+                                width = width,
+                                height = height,
+                                sourceHash = sourceHash,
+                                size = size,
+                                lastAccess = lastAccess
+                            )
+                        }
+
+                        RECORD_STREAMED -> {
+                            val rendition = input.readUTF()
+                            streamed[rendition] = StreamedRendition(
+                                sourceHash = input.readUTF(),
+                                lastAccess = input.readLong()
+                            )
+                        }
+
+                        RECORD_LINK -> {
+                            val keyString = input.readUTF()
+                            links[keyString] = input.readUTF()
+                        }
+
+                        RECORD_REMOVE -> {
+                            val rendition = input.readUTF()
+                            cache.remove(rendition)
+                            framesCache.remove(rendition)
+                            streamed.remove(rendition)
+                        }
+
+                        RECORD_ACCESS -> {
+                            val rendition = input.readUTF()
+                            val lastAccess = input.readLong()
+                            getCached(rendition)?.lastAccess = lastAccess
+                        }
+
+                        else -> throw IOException("Corrupted scaled images cache index")
+                    }
+                }
+            } catch (e: EOFException) {
+                // end of index
+            }
+        }
+    }
+
+    /**
+     * Renditions left without links by a crash between relinking a url and removing its previous rendition,
+     * their files are removed as unindexed.
+     */
+    private fun removeUnlinkedRenditions() {
+        val linked = links.values.toHashSet()
+        cache.keys.removeIf { it !in linked }
+        framesCache.keys.removeIf { it !in linked }
+        streamed.keys.removeIf { it !in linked }
+    }
+
+    private fun removeUnindexedFiles() {
+        val indexedImages = cache.values.mapTo(HashSet()) { it.path }
+        val indexedFrames = framesCache.values.mapTo(HashSet()) { it.path }
+        Files.list(scaledDirectory).use { files ->
+            files.filter { it.isRegularFile() && it !in indexedImages }.forEach { Files.deleteIfExists(it) }
+        }
+        Files.list(scaledFramesDirectory).use { files ->
+            files.filter { it.isRegularFile() && it !in indexedFrames }.forEach { Files.deleteIfExists(it) }
+        }
+
+        cache.entries.removeIf { (_, image) -> image.path.notExists() }
+        framesCache.entries.removeIf { (_, frames) -> frames.path.notExists() }
+        links.entries.removeIf { (_, rendition) -> !contains(rendition) }
+    }
+
+    /**
+     * Access times of all renditions are written with them, pending accesses are dropped.
+     */
+    @Synchronized
+    private fun compactIndex() {
+        index?.close()
+        accessed.clear()
+        val tmpPath = indexPath.resolveSibling("${indexPath.name}.tmp")
+        DataOutputStream(BufferedOutputStream(Files.newOutputStream(tmpPath))).use { output ->
+            output.writeInt(INDEX_MAGIC)
+            output.writeInt(FORMAT_VERSION)
+            cache.forEach { (rendition, image) -> output.writeStatic(rendition, image) }
+            framesCache.forEach { (rendition, frames) -> output.writeFrames(rendition, frames) }
+            streamed.forEach { (rendition, stream) -> output.writeStreamed(rendition, stream) }
+            links.forEach { (keyString, rendition) -> output.writeLink(keyString, rendition) }
+        }
+        Files.move(tmpPath, indexPath, REPLACE_EXISTING, ATOMIC_MOVE)
 
-        Files.createDirectories(cacheDirectory.resolve("scaled/"))
-        Files.createDirectories(cacheDirectory.resolve("scaledFrames/"))
+        indexRecords = cache.size + framesCache.size + streamed.size + links.size
+        index = DataOutputStream(BufferedOutputStream(Files.newOutputStream(indexPath, CREATE, APPEND)))
+    }
+
+    @Synchronized
+    private fun writeRecord(write: DataOutputStream.() -> Unit) {
+        val index = this.index ?: return
+        try {
+            index.write()
+            index.flush()
+            indexRecords++
+            val records = cache.size + framesCache.size + streamed.size + links.size
+            if (indexRecords - records > INDEX_COMPACTION_THRESHOLD) compactIndex()
+        } catch (e: IOException) {
+            logger.error(e) { "failed to write scaled images cache index" }
+        }
+    }
+
+    private fun DataOutputStream.writeStatic(rendition: String, image: CachedImage) {
+        writeByte(RECORD_STATIC)
+        writeUTF(rendition)
+        writeUTF(image.sourceHash)
+        writeInt(image.width)
+        writeInt(image.height)
+        writeLong(image.size)
+        writeLong(image.lastAccess)
+    }
+
+    private fun DataOutputStream.writeFrames(rendition: String, frames: CachedImageFrames) {
+        writeByte(RECORD_FRAMES)
+        writeUTF(rendition)
+        writeUTF(frames.sourceHash)
+        writeInt(frames.width)
+        writeInt(frames.height)
+        writeLong(frames.size)
+        writeLong(frames.lastAccess)
+        writeInt(frames.frames.size)
+        frames.frames.forEach {
+            writeInt(it.delay)
+            writeInt(it.x)
+            writeInt(it.y)
+            writeInt(it.width)
+            writeInt(it.height)
+        }
+    }
+
+    private fun DataOutputStream.writeStreamed(rendition: String, stream: StreamedRendition) {
+        writeByte(RECORD_STREAMED)
+        writeUTF(rendition)
+        writeUTF(stream.sourceHash)
+        writeLong(stream.lastAccess)
+    }
+
+    private fun DataOutputStream.writeLink(keyString: String, rendition: String) {
+        writeByte(RECORD_LINK)
+        writeUTF(keyString)
+        writeUTF(rendition)
+    }
+
+    private fun DataOutputStream.writeRemove(rendition: String) {
+        writeByte(RECORD_REMOVE)
+        writeUTF(rendition)
+    }
+
+    private fun DataOutputStream.writeAccess(rendition: String, lastAccess: Long) {
+        writeByte(RECORD_ACCESS)
+        writeUTF(rendition)
+        writeLong(lastAccess)
     }
 
     private fun ByteArray.toBitmap(width: Int, height: Int): Bitmap {
@@ -105,14 +628,18 @@ class ScaledImagesDiskCache {
         return "${uri.host}${uri.path.split("/").joinToString("_")}_${key.scaleMaxWidth}_${key.scaleMaxHeight}"
     }
 
-    class CacheKey(
+    private fun getRendition(key: CacheKey, sourceHash: String): String {
+        return "${sourceHash}_${key.scaleMaxWidth}_${key.scaleMaxHeight}"
+    }
+
+    data class CacheKey(
         val url: String,
         val scaleMaxWidth: Int?,
         val scaleMaxHeight: Int?,
     )
 
     class CacheImage(
-        val pixels: ByteArray,
+        val pixels: ByteBuffer,
         val width: Int,
         val height: Int,
     )
@@ -123,29 +650,64 @@ class ScaledImagesDiskCache {
         val height: Int,
     )
 
+    /**
+     * @param palette [PALETTE_SIZE] BGRA_8888 colors
+     * @param indices one palette index per pixel of the width * height rectangle at [x], [y]
+     */
     class CacheImageFrame(
-        val pixels: ByteArray,
+        val palette: ByteBuffer,
+        val indices: ByteBuffer,
+        val x: Int,
+        val y: Int,
         val width: Int,
         val height: Int,
         val delay: Int
     )
 
+    /**
+     * @param path file of the rendition, null for streamed ones
+     */
+    private sealed class Rendition(
+        open val path: Path?,
+        val sourceHash: String,
+        val size: Long,
+        @Volatile var lastAccess: Long,
+    )
+
     private class CachedImage(
-        val path: Path,
+        override val path: Path,
         val width: Int,
         val height: Int,
-    )
+        sourceHash: String,
+        size: Long,
+        lastAccess: Long,
+    ) : Rendition(path, sourceHash, size, lastAccess)
 
     private class CachedImageFrames(
-        val frames: Map<Path, CachedImageFrameData>,
+        override val path: Path,
+        val frames: List<CachedImageFrameData>,
         val width: Int,
         val height: Int,
-    )
+        sourceHash: String,
+        size: Long,
+        lastAccess: Long,
+    ) : Rendition(path, sourceHash, size, lastAccess)
+
+    private class StreamedRendition(
+        sourceHash: String,
+        lastAccess: Long,
+    ) : Rendition(null, sourceHash, 0, lastAccess)
 
     private class CachedImageFrameData(
         val delay: Int,
+        val x: Int,
+        val y: Int,
         val width: Int,
         val height: Int,
     )
-}
 
+    companion object {
+        fun sourceHash(image: ByteArray): String =
+            BigInteger(1, MessageDigest.getInstance("SHA-256").digest(image)).toString(16).padStart(64, '0')
+    }
+}
@@ -0,0 +1,32 @@
+package image
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Joins concurrent requests for the same key into a single computation.
+ *
+ * The computation runs in [scope] rather than in the caller, a caller leaving early doesn't cancel
+ * the work for the others and the result still reaches the caches.
+ */
+class SingleFlight<K : Any, V>(
+    private val scope: CoroutineScope,
+) {
+    private val inFlight = ConcurrentHashMap<K, Deferred<V>>()
+
+    suspend fun run(key: K, block: suspend () -> V): V {
+        var created: Deferred<V>? = null
+        val deferred = inFlight.computeIfAbsent(key) {
+            scope.async(start = CoroutineStart.LAZY) { block() }.also { created = it }
+        }
+
+        if (deferred === created) {
+            deferred.invokeOnCompletion { inFlight.remove(key, deferred) }
+            deferred.start()
+        }
+        return deferred.await()
+    }
+}
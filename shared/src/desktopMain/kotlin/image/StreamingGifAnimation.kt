@@ -0,0 +1,237 @@
+package image
+
+import androidx.compose.ui.graphics.ImageBitmap
+import androidx.compose.ui.graphics.asComposeImageBitmap
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import mu.KotlinLogging
+import org.jetbrains.skia.Bitmap
+import org.jetbrains.skia.ColorAlphaType.UNPREMUL
+import org.jetbrains.skia.ColorInfo
+import org.jetbrains.skia.ColorSpace.Companion.sRGB
+import org.jetbrains.skia.ColorType.BGRA_8888
+import org.jetbrains.skia.ImageInfo
+import org.snd.gifdecoder.GifDecoder
+import org.snd.gifdecoder.GifHeader
+import org.snd.gifdecoder.PixelFormat
+import org.snd.gifdecoder.StandardGifDecoder
+import java.nio.ByteBuffer
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * Number of frames decoded and scaled ahead of the displayed one.
+ */
+private const val PREPARED_FRAMES = 3
+
+/**
+ * Prepared frames, the frame being prepared, the displayed frame and the previously displayed frame
+ * that can still be on screen until the next draw.
+ */
+private const val BITMAP_RING_SIZE = PREPARED_FRAMES + 3
+
+/**
+ * Frames composed between snapshots of the decoder canvas, seeking after copies jump to another part of the
+ * timeline resumes from the closest snapshot instead of composing from the last keyframe.
+ */
+private const val SNAPSHOT_INTERVAL = 16
+private const val MAX_SNAPSHOT_BYTES = 4 * 1024 * 1024
+
+/**
+ * Animated gif that is decoded and scaled while it plays instead of up front.
+ *
+ * Only the first frame is prepared on creation. Frames are prepared into a fixed ring of bitmaps shared by
+ * every copy of the animation on screen, so memory and decoding work per animation are bounded no matter how
+ * many frames the gif has or how many copies of it are visible. The animation keeps its own decoder, so
+ * playback continues where it stopped and snapshots taken while playing are reused when seeking.
+ */
+class StreamingGifAnimation(
+    private val gif: ByteArray,
+    private val header: GifHeader,
+    private val maxHeight: Int?,
+    private val maxWidth: Int?,
+) : AnimationFrames {
+    override val width: Int
+    override val height: Int
+    override val delays: List<Int>
+
+    private val bitmaps: Array<Bitmap>
+    private val imageBitmaps: Array<ImageBitmap>
+
+    /**
+     * Frame held by each bitmap of the ring, -1 while it's empty or being prepared. Guards the ring.
+     */
+    private val slotFrames = IntArray(BITMAP_RING_SIZE) { -1 }
+    private var displayedSlot = 0
+    private var previousSlot = 0
+
+    private val requestedFrame = MutableStateFlow(0)
+    private val producer = Mutex()
+    private val decoder = FrameDecoder()
+
+    val byteSize: Long
+        get() = gif.size + decoder.byteSize + BITMAP_RING_SIZE * width.toLong() * height * 4
+
+    init {
+        decoder.decodeNext()
+        width = decoder.width
+        height = decoder.height
+        delays = decoder.delays
+
+        bitmaps = Array(BITMAP_RING_SIZE) { createBitmap() }
+        imageBitmaps = Array(BITMAP_RING_SIZE) { bitmaps[it].asComposeImageBitmap() }
+        bitmaps[0].installPixels(decoder.pixels)
+        slotFrames[0] = 0
+    }
+
+    /**
+     * Bitmap of [frameIndex] or of the last displayed frame while it's not prepared yet.
+     * Asks [play] to prepare the frames following [frameIndex].
+     */
+    override fun bitmap(frameIndex: Int): ImageBitmap {
+        requestedFrame.value = frameIndex
+        synchronized(slotFrames) {
+            val slot = slotFrames.indexOf(frameIndex)
+            if (slot >= 0 && slot != displayedSlot) {
+                previousSlot = displayedSlot
+                displayedSlot = slot
+            }
+            return imageBitmaps[displayedSlot]
+        }
+    }
+
+    /**
+     * Prepares frames for every copy of the animation until the calling coroutine is cancelled, at most
+     * [PREPARED_FRAMES] ahead of the last frame requested through [bitmap].
+     *
+     * Only one of the callers prepares frames, the rest wait to take over when it leaves.
+     */
+    suspend fun play(): Nothing = producer.withLock {
+        withContext(Dispatchers.Default) {
+            try {
+                prepareFrames()
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                logger.error(e) { "gif animation stopped" }
+                awaitCancellation()
+            }
+        }
+    }
+
+    private suspend fun prepareFrames(): Nothing {
+        while (true) {
+            val target = requestedFrame.value
+            val frame = nextMissingFrame(target)
+            if (frame < 0) {
+                requestedFrame.first { it != target }
+                continue
+            }
+
+            // the decoder continues from the previous frame unless copies jumped to another part of the timeline
+            if (decoder.nextFrame != frame) decoder.seekTo(frame)
+            val slot = claimSlot(target)
+            decoder.decodeNext()
+            bitmaps[slot].installPixels(decoder.pixels)
+            synchronized(slotFrames) { slotFrames[slot] = frame }
+        }
+    }
+
+    /**
+     * First of [target] and the [PREPARED_FRAMES] frames after it that is not in the ring, or -1.
+     */
+    private fun nextMissingFrame(target: Int): Int = synchronized(slotFrames) {
+        for (ahead in 0..PREPARED_FRAMES) {
+            val frame = (target + ahead) % delays.size
+            if (frame !in slotFrames) return frame
+        }
+        return -1
+    }
+
+    /**
+     * Takes a bitmap that is not on screen and holds no frame that is about to be displayed. There always
+     * is one while a frame is missing: at most [PREPARED_FRAMES] prepared frames and two displayed ones
+     * occupy the ring.
+     */
+    private fun claimSlot(target: Int): Int = synchronized(slotFrames) {
+        val slot = slotFrames.indices.first { slot ->
+            val ahead = Math.floorMod(slotFrames[slot] - target, delays.size)
+            slot != displayedSlot && slot != previousSlot && (slotFrames[slot] < 0 || ahead > PREPARED_FRAMES)
+        }
+        slotFrames[slot] = -1
+        return slot
+    }
+
+    private fun createBitmap(): Bitmap {
+        val imageInfo = ImageInfo(ColorInfo(BGRA_8888, UNPREMUL, sRGB), width, height)
+        return Bitmap().apply { allocPixels(imageInfo) }
+    }
+
+    private inner class FrameDecoder {
+        private val scaledDimensions = ImageConverter.getScaleDimensions(header.height, header.width, maxHeight, maxWidth)
+        val width = scaledDimensions.width
+        val height = scaledDimensions.height
+
+        private val sampleSize = ImageConverter.gifSampleSize(header.width, header.height, width, height)
+        private val decoder = StandardGifDecoder(header, ByteBuffer.wrap(gif), sampleSize)
+        private val canvasPixels = IntArray((header.width / sampleSize) * (header.height / sampleSize))
+        private val resampler = LanczosResampler(
+            srcWidth = header.width / sampleSize,
+            srcHeight = header.height / sampleSize,
+            dstWidth = width,
+            dstHeight = height
+        )
+        private val resamplerBuffers = resampler.Buffers()
+        private val scaledPixels = IntArray(width * height)
+        val pixels = ByteArray(width * height * 4)
+
+        val delays = List(decoder.frameCount) { decoder.getDelay(it) }
+
+        /**
+         * Working buffers and the snapshot limit, the gif itself is not counted.
+         */
+        val byteSize: Long = decoder.byteSize - gif.size + MAX_SNAPSHOT_BYTES +
+                (canvasPixels.size + scaledPixels.size) * 4L + pixels.size + resamplerBuffers.byteSize
+
+        /**
+         * Frame decoded by the next [decodeNext].
+         */
+        val nextFrame get() = decoder.currentFrameIndex
+
+        init {
+            decoder.setSnapshotPolicy(SNAPSHOT_INTERVAL, MAX_SNAPSHOT_BYTES)
+            decoder.advance()
+        }
+
+        /**
+         * Makes [frame] the next one decoded.
+         */
+        fun seekTo(frame: Int) = decoder.seekTo(frame)
+
+        /**
+         * Decodes and scales the next frame into [pixels] as BGRA_8888.
+         *
+         * @return frame delay
+         */
+        fun decodeNext(): Int {
+            val status = decoder.decodeNextFrameInto(canvasPixels, PixelFormat.ARGB_8888)
+            if (status == GifDecoder.STATUS_FORMAT_ERROR || status == GifDecoder.STATUS_OPEN_ERROR)
+                throw IllegalStateException("Failed to decode gif frame ${decoder.currentFrameIndex}")
+
+            resampler.resample(canvasPixels, scaledPixels, resamplerBuffers)
+            ByteBuffer.wrap(pixels).asIntBuffer().apply {
+                for (argb in scaledPixels) put(Integer.reverseBytes(argb))
+            }
+
+            val delay = decoder.getDelay(decoder.currentFrameIndex)
+            decoder.advance()
+            return delay
+        }
+    }
+}